@@ -0,0 +1,162 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.IoTMessage;
+import utils.IoTMessageType;
+import utils.IoTOpcodes;
+import utils.IoTStream;
+
+/**
+ * Load benchmark comparing the footprint of the server
+ * execution modes. For each mode a server process is
+ * launched, the given number of sessions is opened and
+ * authenticated and kept idle, then the thread count and
+ * resident memory of the server are sampled from /proc.
+ * Sessions only authenticate the user, so the cost of
+ * persisting new devices doesn't hide the cost of the
+ * connections themselves.
+ */
+public class IoTConnectionBench {
+    private static final String USAGE = "USAGE: IoTConnectionBench <sessions> [thread|virtual|nio ...]";
+    private static final String[] DEFAULT_MODES = new String[]{"thread", "virtual", "nio"};
+    private static final String ROW = "%-8s %10s %12s %12s %14s %14s";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        int sessions;
+        try {
+            sessions = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        String[] modes = DEFAULT_MODES;
+        if (args.length > 1) {
+            modes = new String[args.length - 1];
+            System.arraycopy(args, 1, modes, 0, modes.length);
+        }
+
+        System.out.println(String.format(ROW, "mode", "sessions", "threads(0)", "threads(n)", "rss(0) KiB", "rss(n) KiB"));
+        for (String mode : modes) {
+            run(mode, sessions);
+        }
+    }
+
+    /**
+     * Launches a server in the given mode, opens the sessions
+     * and prints one result row.
+     */
+    private static void run(String mode, int sessions) throws Exception {
+        int port = freePort();
+        Path workdir = Files.createTempDirectory("iot-bench-");
+        Process server = launchServer(mode, port, workdir.toFile());
+        List<IoTStream> streams = new ArrayList<>(sessions);
+        try {
+            waitForServer(port);
+            // Creates the user used by every session
+            openSession(port).close();
+            Thread.sleep(1000);
+            long[] before = sample(server.pid());
+
+            for (int i = 0; i < sessions; i++) {
+                streams.add(openSession(port));
+            }
+            Thread.sleep(2000);
+            long[] after = sample(server.pid());
+
+            System.out.println(String.format(ROW, mode, sessions,
+                before[0], after[0], before[1], after[1]));
+        } finally {
+            for (IoTStream stream : streams)
+                stream.close();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static Process launchServer(String mode, int port, File workdir) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("server.IoTServer");
+        command.add(Integer.toString(port));
+        if (!mode.equals("thread"))
+            command.add("--" + mode);
+
+        return new ProcessBuilder(command)
+            .directory(workdir)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+
+    /**
+     * Opens a connection and authenticates the bench user.
+     */
+    private static IoTStream openSession(int port) throws IOException {
+        IoTStream stream = new IoTStream(new Socket("127.0.0.1", port));
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.VALIDATE_USER);
+        request.setUserId("bench");
+        request.setUserPwd("bench");
+        if (!stream.write(request) || stream.read() == null) {
+            stream.close();
+            throw new IOException("Failed to authenticate session");
+        }
+        return stream;
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server didn't start");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Reads the thread count and resident memory of a process.
+     * @return
+     *      Array with the number of threads and the resident
+     *      set size in KiB, -1 when not available.
+     */
+    private static long[] sample(long pid) {
+        long[] values = new long[]{-1, -1};
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                String[] tokens = line.split("\\s+");
+                if (tokens[0].equals("Threads:"))
+                    values[0] = Long.parseLong(tokens[1]);
+                else if (tokens[0].equals("VmRSS:"))
+                    values[1] = Long.parseLong(tokens[1]);
+            }
+        } catch (IOException | NumberFormatException e) {
+        }
+        return values;
+    }
+}
@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.IoTFileManager;
+
+/**
+ * Contention benchmark of the file locks of {@link IoTFileManager}.
+ * Each thread writes and reads it's own small file, as devices
+ * do with their readings, for an increasing number of threads.
+ * Every run is repeated with a background thread rewriting a
+ * big image in another file, which shouldn't slow the others.
+ */
+public class IoTFileManagerBench {
+    private static final String USAGE = "USAGE: IoTFileManagerBench <seconds per run> (optional) <max threads> (optional)";
+    private static final int SMALL_FILE_SIZE = 64;
+    private static final int IMAGE_SIZE = 8 * 1024 * 1024;
+    private static final String ROW = "%-8s %-12s %14s %12s";
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 3;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 0)
+                seconds = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                maxThreads = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        Path workdir = Files.createTempDirectory("iot-bench-files-");
+        System.out.println(String.format(ROW, "threads", "image writer", "ops/s", "ops/s/thread"));
+
+        // Warm up, not reported
+        run(workdir, 1, false, 1);
+
+        // Powers of two up to the maximum
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2)
+            counts.add(threads);
+        counts.add(maxThreads);
+
+        for (int threads : counts) {
+            for (boolean imageWriter : new boolean[]{false, true}) {
+                double throughput = run(workdir, threads, imageWriter, seconds);
+                System.out.println(String.format(ROW, threads, imageWriter ? "yes" : "no",
+                    String.format("%.0f", throughput), String.format("%.0f", throughput / threads)));
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of threads for a period of time.
+     * @return
+     *      Write and read operations per second of all threads.
+     */
+    private static double run(Path workdir, int threads, boolean imageWriter, int seconds) throws InterruptedException, IOException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            String path = workdir.resolve("device-" + i).resolve("temp.txt").toString();
+            byte[] content = new byte[SMALL_FILE_SIZE];
+            workers.add(new Thread(() -> {
+                await(start);
+                while (running.get()) {
+                    IoTFileManager.writeFileAsBytes(path, content);
+                    IoTFileManager.readFileAsBytes(path);
+                    operations.add(2);
+                }
+            }));
+        }
+
+        if (imageWriter) {
+            String path = workdir.resolve("camera").resolve("image.jpg").toString();
+            byte[] image = new byte[IMAGE_SIZE];
+            workers.add(new Thread(() -> {
+                await(start);
+                while (running.get())
+                    IoTFileManager.writeFileAsBytes(path, image);
+            }));
+        }
+
+        for (Thread worker : workers)
+            worker.start();
+
+        start.countDown();
+        long begin = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        long elapsed = System.nanoTime() - begin;
+
+        for (Thread worker : workers)
+            worker.join();
+
+        return operations.sum() / (elapsed / 1e9);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
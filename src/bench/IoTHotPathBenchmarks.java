@@ -0,0 +1,491 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import bench.IoTMicroBench.Benchmark;
+import server.IoTServerDatabase;
+import server.IoTServerRequestHandler;
+import server.model.Device;
+import server.model.Domain;
+import server.model.Session;
+import server.model.User;
+import utils.IoTFileManager;
+import utils.IoTIParsable;
+import utils.IoTMessage;
+import utils.IoTMessageCodec;
+import utils.IoTMessageType;
+import utils.IoTOpcodes;
+import utils.IoTReadings;
+import utils.IoTStream;
+
+/**
+ * Benchmarks of the server hot paths, run by {@link IoTMicroBench}.
+ * Each one runs in it's own JVM and empty working directory,
+ * so the files they create don't affect the others. Inputs
+ * come from a fixed seed, to be the same on every run.
+ */
+public class IoTHotPathBenchmarks {
+    private static final long SEED = 42;
+    // Threads of the contended benchmarks, fixed so names are comparable between machines
+    private static final int CONTENDED_THREADS = 4;
+
+    private IoTHotPathBenchmarks() {
+    }
+
+    /**
+     * Every benchmark by name, in the order they run.
+     */
+    public static Map<String, Supplier<Benchmark>> all() {
+        Map<String, Supplier<Benchmark>> benchmarks = new LinkedHashMap<>();
+
+        for (byte protocol : new byte[]{IoTMessageCodec.PROTOCOL_BINARY, IoTMessageCodec.PROTOCOL_SERIAL}) {
+            String name = protocol == IoTMessageCodec.PROTOCOL_BINARY ? "binary" : "serial";
+            benchmarks.put("codec." + name + ".SEND_TEMP", () -> new Codec(temperature(), protocol));
+            benchmarks.put("codec." + name + ".SEND_TEMP_BATCH-1000", () -> new Codec(batch(1000), protocol));
+            benchmarks.put("codec." + name + ".GET_TEMP-10000", () -> new Codec(temperatures(10000), protocol));
+        }
+
+        benchmarks.put("stream.roundtrip.SEND_TEMP", () -> new StreamRoundTrip(temperature()));
+        benchmarks.put("stream.roundtrip.SEND_TEMP_BATCH-1000", () -> new StreamRoundTrip(batch(1000)));
+
+        for (IoTOpcodes opcode : HandlerFixture.OPCODES)
+            benchmarks.put("handler." + opcode, () -> new Handler(opcode));
+
+        for (int size : new int[]{10, 100, 1000, 10000})
+            benchmarks.put("domain.extractTemperatures-" + size, () -> new ExtractTemperatures(size));
+
+        benchmarks.put("parse.separateStrByChar.user", () -> new Separate(new User("user", "password").parseToSerial()));
+        benchmarks.put("parse.separateStrByChar.domain-100", () -> new Separate(domain(100).parseToSerial()));
+        benchmarks.put("parse.Domain.parseFromSerial-100", () -> new ParseDomain(domain(100)));
+
+        benchmarks.put("files.write-read.private.threads=1", () -> new Files(1, false));
+        benchmarks.put("files.write-read.private.threads=" + CONTENDED_THREADS, () -> new Files(CONTENDED_THREADS, false));
+        benchmarks.put("files.write-read.shared.threads=" + CONTENDED_THREADS, () -> new Files(CONTENDED_THREADS, true));
+        return benchmarks;
+    }
+
+    private static IoTMessageType temperature() {
+        IoTMessageType message = new IoTMessage();
+        message.setOpCode(IoTOpcodes.SEND_TEMP);
+        message.setTemp(21.5f);
+        message.setCorrelationId(1);
+        return message;
+    }
+
+    private static IoTMessageType batch(int size) {
+        Random random = new Random(SEED);
+        IoTReadings readings = new IoTReadings(size);
+        for (int i = 0; i < size; i++)
+            readings.add(1_700_000_000_000L + i * 1000L, 15 + random.nextFloat() * 10);
+        IoTMessageType message = new IoTMessage();
+        message.setOpCode(IoTOpcodes.SEND_TEMP_BATCH);
+        message.setReadings(readings);
+        return message;
+    }
+
+    private static IoTMessageType temperatures(int size) {
+        Domain domain = domain(size);
+        Random random = new Random(SEED);
+        for (Device device : domain.getDevices())
+            device.writeTemperature(1_700_000_000_000L, 15 + random.nextFloat() * 10);
+        IoTMessageType message = new IoTMessage();
+        message.setOpCode(IoTOpcodes.OK_ACCEPTED);
+        message.setTemperatures(domain.extractTemperatures());
+        return message;
+    }
+
+    private static Domain domain(int size) {
+        User owner = new User("owner", "password");
+        Domain domain = new Domain("domain", owner);
+        for (int i = 0; i < size; i++) {
+            User user = new User("user" + i, "password");
+            domain.addUser(user);
+            domain.registerDevice(new Device(user, i));
+        }
+        return domain;
+    }
+
+    /**
+     * Encodes and decodes a message, without the network.
+     */
+    private static class Codec implements Benchmark {
+        private final IoTMessageType message;
+        private final byte protocol;
+
+        private Codec(IoTMessageType message, byte protocol) {
+            this.message = message;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public Object run() {
+            byte[] payload = IoTMessageCodec.encode(this.message, this.protocol);
+            return IoTMessageCodec.decode(payload, 0, payload.length, this.protocol);
+        }
+    }
+
+    /**
+     * Sends a message through a loopback connection and
+     * waits for the peer to send it back.
+     */
+    private static class StreamRoundTrip implements Benchmark {
+        private final IoTMessageType message;
+        private ServerSocket listener;
+        private IoTStream client;
+        private Thread echo;
+
+        private StreamRoundTrip(IoTMessageType message) {
+            this.message = message;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            this.listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            this.echo = new Thread(() -> {
+                try (Socket socket = this.listener.accept()) {
+                    IoTStream stream = new IoTStream(socket);
+                    Object received;
+                    while ((received = stream.read()) != null)
+                        stream.write(received);
+                } catch (Exception e) {
+                }
+            });
+            this.echo.start();
+            this.client = new IoTStream(new Socket(InetAddress.getLoopbackAddress(), this.listener.getLocalPort()));
+        }
+
+        @Override
+        public Object run() {
+            this.client.write(this.message);
+            return this.client.read();
+        }
+
+        @Override
+        public void teardown() throws Exception {
+            this.client.close();
+            this.echo.join();
+            this.listener.close();
+        }
+    }
+
+    /**
+     * Authenticated session with a domain, readings and an
+     * image, shared by the handler benchmarks.
+     */
+    private static class HandlerFixture {
+        // Requests that can be repeated on the same session, see next
+        private static final IoTOpcodes[] OPCODES = {
+            IoTOpcodes.VALIDATE_USER,
+            IoTOpcodes.VALIDATE_DEVICE,
+            IoTOpcodes.VALIDATE_PROGRAM,
+            IoTOpcodes.ATTACH_DEVICE,
+            IoTOpcodes.CREATE_DOMAIN,
+            IoTOpcodes.ADD_USER_DOMAIN,
+            IoTOpcodes.REGISTER_DEVICE_DOMAIN,
+            IoTOpcodes.SEND_TEMP,
+            IoTOpcodes.SEND_TEMP_BATCH,
+            IoTOpcodes.SEND_IMAGE,
+            IoTOpcodes.GET_TEMP,
+            IoTOpcodes.GET_USER_IMAGE,
+            IoTOpcodes.GET_TEMP_RANGE,
+            IoTOpcodes.GET_TEMP_RECENT,
+            IoTOpcodes.GET_TEMP_STATS
+        };
+        private static final String USER = "bench";
+        private static final int DEVICE = 1;
+        private static final int ATTACHED = 2;
+        private static final String DOMAIN = "bench";
+        private static final int READINGS = 1000;
+        private static final int IMAGE_SIZE = 4096;
+
+        private final IoTServerRequestHandler handler = IoTServerRequestHandler.getInstance();
+        private final IoTServerDatabase db = IoTServerDatabase.getInstance();
+        private final Session session = new Session();
+        // Suffix of the names created by the iterations
+        private final AtomicLong names = new AtomicLong();
+
+        private HandlerFixture() {
+            process(request(IoTOpcodes.VALIDATE_USER));
+            process(request(IoTOpcodes.VALIDATE_DEVICE));
+            process(request(IoTOpcodes.VALIDATE_PROGRAM));
+            process(request(IoTOpcodes.ATTACH_DEVICE));
+            process(request(IoTOpcodes.CREATE_DOMAIN));
+            process(request(IoTOpcodes.REGISTER_DEVICE_DOMAIN));
+            process(batch(READINGS));
+            process(request(IoTOpcodes.SEND_IMAGE));
+        }
+
+        private IoTMessageType process(IoTMessageType request) {
+            IoTMessageType response = this.handler.process(request, this.session, this.db);
+            // Downloads aren't sent, only opened
+            if (response != null && response.getAttachment() != null) {
+                try {
+                    response.getAttachment().close();
+                } catch (IOException e) {
+                }
+            }
+            return response;
+        }
+
+        /**
+         * Gets the request of an iteration. Requests that add
+         * something get a new name every time, otherwise only
+         * the first iteration would add it and the rest would
+         * measure the "already exists" answer.
+         */
+        private IoTMessageType next(IoTMessageType request) {
+            IoTOpcodes opcode = request.getOpcode();
+            if (opcode == IoTOpcodes.SEND_TEMP_BATCH) {
+                // Batches older than the stored readings are refused
+                long now = System.currentTimeMillis();
+                IoTReadings readings = new IoTReadings(request.getReadings().size());
+                for (int i = 0; i < request.getReadings().size(); i++)
+                    readings.add(now, request.getReadings().getValue(i));
+                IoTMessageType next = request(opcode);
+                next.setReadings(readings);
+                return next;
+            }
+            if (opcode != IoTOpcodes.CREATE_DOMAIN && opcode != IoTOpcodes.ADD_USER_DOMAIN
+                    && opcode != IoTOpcodes.REGISTER_DEVICE_DOMAIN)
+                return request;
+
+            IoTMessageType next = request(opcode);
+            String suffix = "-" + this.names.incrementAndGet();
+            switch (opcode) {
+                case CREATE_DOMAIN:
+                next.setDomainName(DOMAIN + suffix);
+                return next;
+
+                case ADD_USER_DOMAIN:
+                this.db.addUser(new User(USER + suffix, "password"));
+                next.setUserId(USER + suffix);
+                return next;
+
+                case REGISTER_DEVICE_DOMAIN:
+                this.db.addDomain(new Domain(DOMAIN + suffix, this.session.getUser()));
+                next.setDomainName(DOMAIN + suffix);
+                return next;
+
+                default:
+                return request;
+            }
+        }
+
+        private IoTMessageType request(IoTOpcodes opcode) {
+            IoTMessageType message = new IoTMessage();
+            message.setOpCode(opcode);
+            switch (opcode) {
+                case VALIDATE_USER:
+                message.setUserId(USER);
+                message.setUserPwd("password");
+                break;
+
+                case VALIDATE_DEVICE:
+                message.setDevId(DEVICE);
+                break;
+
+                case VALIDATE_PROGRAM:
+                message.setProgramName(this.db.getClientProgramName());
+                message.setProgramSize(this.db.getClientProgramSize());
+                break;
+
+                case ATTACH_DEVICE:
+                message.setDevId(ATTACHED);
+                break;
+
+                case CREATE_DOMAIN:
+                case REGISTER_DEVICE_DOMAIN:
+                case GET_TEMP:
+                message.setDomainName(DOMAIN);
+                break;
+
+                case ADD_USER_DOMAIN:
+                message.setUserId(USER);
+                message.setDomainName(DOMAIN);
+                break;
+
+                case SEND_TEMP:
+                message.setTemp(21.5f);
+                break;
+
+                case SEND_TEMP_BATCH:
+                return batch(10);
+
+                case SEND_IMAGE:
+                byte[] image = new byte[IMAGE_SIZE];
+                new Random(SEED).nextBytes(image);
+                message.setImageName("image.jpg");
+                message.setImageSize(image.length);
+                message.setImage(image);
+                break;
+
+                case GET_USER_IMAGE:
+                message.setUserId(USER);
+                message.setDevId(DEVICE);
+                break;
+
+                case GET_TEMP_RANGE:
+                message.setUserId(USER);
+                message.setDevId(DEVICE);
+                message.setTimeFrom(0);
+                message.setTimeTo(Long.MAX_VALUE);
+                break;
+
+                case GET_TEMP_RECENT:
+                message.setUserId(USER);
+                message.setDevId(DEVICE);
+                message.setCount(100);
+                break;
+
+                case GET_TEMP_STATS:
+                message.setDomainName(DOMAIN);
+                message.setTimeFrom(0);
+                message.setTimeTo(Long.MAX_VALUE);
+                message.setCount(100);
+                break;
+
+                default:
+                break;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Processes one request on an authenticated session,
+     * without the network.
+     */
+    private static class Handler implements Benchmark {
+        private final IoTOpcodes opcode;
+        private HandlerFixture fixture;
+        private IoTMessageType request;
+
+        private Handler(IoTOpcodes opcode) {
+            this.opcode = opcode;
+        }
+
+        @Override
+        public void setup() {
+            this.fixture = new HandlerFixture();
+            this.request = this.fixture.request(this.opcode);
+        }
+
+        @Override
+        public Object run() {
+            return this.fixture.process(this.fixture.next(this.request));
+        }
+
+        @Override
+        public void teardown() {
+            IoTServerDatabase.getInstance().close();
+        }
+    }
+
+    /**
+     * Collects the latest temperature of every device
+     * of a domain, as GET_TEMP does.
+     */
+    private static class ExtractTemperatures implements Benchmark {
+        private final int size;
+        private Domain domain;
+
+        private ExtractTemperatures(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void setup() {
+            this.domain = domain(this.size);
+            Random random = new Random(SEED);
+            for (Device device : this.domain.getDevices())
+                device.writeTemperature(System.currentTimeMillis(), 15 + random.nextFloat() * 10);
+        }
+
+        @Override
+        public Object run() {
+            return this.domain.extractTemperatures();
+        }
+    }
+
+    /**
+     * Splits a serialized object as the metadata loaders do.
+     */
+    private static class Separate implements Benchmark {
+        private final String serial;
+
+        private Separate(String serial) {
+            this.serial = serial;
+        }
+
+        @Override
+        public Object run() {
+            return IoTIParsable.separateStrByChar(',', this.serial);
+        }
+    }
+
+    /**
+     * Loads a domain from it's serial form, as done at
+     * startup for every line of the domains file.
+     */
+    private static class ParseDomain implements Benchmark {
+        private final Map<String, User> users = new HashMap<>();
+        private final Map<String, Device> devices = new HashMap<>();
+        private final String serial;
+
+        private ParseDomain(Domain domain) {
+            for (User user : domain.getNamespace())
+                this.users.put(user.getName(), user);
+            for (Device device : domain.getDevices())
+                this.devices.put(device.getName(), device);
+            this.serial = domain.parseToSerial();
+        }
+
+        @Override
+        public Object run() {
+            return Domain.parseFromSerial(this.users, this.devices, this.serial);
+        }
+    }
+
+    /**
+     * Writes and reads back a small file, each thread its
+     * own or all of them the same one.
+     */
+    private static class Files implements Benchmark {
+        private static final int FILE_SIZE = 64;
+        private final int threads;
+        private final boolean shared;
+        private final ThreadLocal<String> path;
+        private final byte[] content;
+
+        private Files(int threads, boolean shared) {
+            this.threads = threads;
+            this.shared = shared;
+            this.path = ThreadLocal.withInitial(() -> Paths.get("files",
+                this.shared ? "shared" : Thread.currentThread().getName(), "temp.txt").toString());
+            this.content = new byte[FILE_SIZE];
+            new Random(SEED).nextBytes(this.content);
+        }
+
+        @Override
+        public Object run() {
+            String path = this.path.get();
+            IoTFileManager.writeFileAsBytes(path, this.content);
+            return IoTFileManager.readFileAsBytes(path);
+        }
+
+        @Override
+        public int threads() {
+            return this.threads;
+        }
+    }
+}
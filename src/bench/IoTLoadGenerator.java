@@ -0,0 +1,419 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import client.IoTAsyncClient;
+import client.IoTAsyncClient.Outcome;
+import utils.IoTHistogram;
+
+/**
+ * End-to-end load generator simulating a fleet of devices.
+ * Every device has it's own connection and goes through the
+ * same authentication as IoTDevice (user, device, program),
+ * registers in a shared domain and sends a first temperature
+ * and image. Then requests are issued at a fixed total rate,
+ * each to a random device with a random command of the mix:
+ * <ul>
+ *      <li> ET sends a temperature;
+ *      <li> EI sends an image;
+ *      <li> RT reads the temperatures of the domain;
+ *      <li> RI downloads the image of a random device.
+ * </ul>
+ * The rate doesn't slow down when the server does: the
+ * latency is measured from the moment each request should
+ * have been sent, so a stalled server shows in the
+ * percentiles instead of lowering the load.
+ * Downloaded images are written to the working directory.
+ */
+public class IoTLoadGenerator {
+    private static final String USAGE = "USAGE: IoTLoadGenerator <serverAddress> [--devices <n>] [--users <n>] " +
+        "[--rate <requests per second>] [--duration <s>] [--warmup <s>] [--mix ET=<w>,EI=<w>,RT=<w>,RI=<w>] " +
+        "[--image-size <bytes>] [--program <IoTDevice.jar>] [--domain <name>] [--seed <n>]";
+    private static final int DEFAULT_PORT = 12345;
+    private static final String PASSWORD = "load";
+    private static final String ROW = "%-4s %10s %10s %10s %10s %10s %10s %8s";
+    // Time allowed for the requests in flight to finish
+    private static final long DRAIN_SECONDS = 30;
+
+    /**
+     * Commands of the mix.
+     */
+    private enum Command {
+        ET, EI, RT, RI
+    }
+
+    /**
+     * Simulated device, connected and authenticated.
+     */
+    private static class SimulatedDevice {
+        private final String user;
+        private final int devId;
+        private IoTAsyncClient client;
+
+        private SimulatedDevice(String user, int devId) {
+            this.user = user;
+            this.devId = devId;
+        }
+    }
+
+    /**
+     * Latencies and outcomes of a command.
+     */
+    private static class Stats {
+        private final IoTHistogram latency = new IoTHistogram();
+        private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    }
+
+    private final String host;
+    private final int port;
+    private final Map<String, String> options;
+    private final List<SimulatedDevice> devices;
+    private final Map<Command, Stats> stats;
+    // Every command
+    private final IoTHistogram total;
+    private final LongAdder inFlight;
+    private Path image;
+
+    private IoTLoadGenerator(String host, int port, Map<String, String> options) {
+        this.host = host;
+        this.port = port;
+        this.options = options;
+        this.devices = new ArrayList<>();
+        this.stats = new EnumMap<>(Command.class);
+        for (Command command : Command.values())
+            this.stats.put(command, new Stats());
+        this.total = new IoTHistogram();
+        this.inFlight = new LongAdder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length % 2 == 0) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        String[] address = args[0].split(":");
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.out.println(USAGE);
+                return;
+            }
+            options.put(args[i], args[i + 1]);
+        }
+
+        IoTLoadGenerator generator;
+        try {
+            int port = address.length > 1 ? Integer.parseInt(address[1]) : DEFAULT_PORT;
+            generator = new IoTLoadGenerator(address[0], port, options);
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        try {
+            System.exit(generator.run());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+        }
+    }
+
+    /**
+     * Sets up the fleet, runs the load and prints the report.
+     * @return
+     *      0 if the load ran, 1 if the fleet couldn't be set up.
+     */
+    private int run() throws Exception {
+        int devices = intOption("--devices", 10);
+        int users = Math.min(devices, intOption("--users", Math.max(1, devices / 10)));
+        double rate = Double.parseDouble(this.options.getOrDefault("--rate", "100"));
+        int duration = intOption("--duration", 30);
+        int warmup = intOption("--warmup", 5);
+        int imageSize = intOption("--image-size", 64 * 1024);
+        String domain = this.options.getOrDefault("--domain", "load");
+        Map<Command, Integer> mix = parseMix(this.options.getOrDefault("--mix", "ET=50,EI=5,RT=40,RI=5"));
+        if (devices < 1 || rate <= 0 || duration < 1 || warmup < 0 || imageSize < 1)
+            throw new IllegalArgumentException("Invalid option");
+
+        File program = new File(this.options.getOrDefault("--program", "IoTDevice.jar"));
+        if (!program.isFile()) {
+            System.out.println("Client program not found: " + program);
+            return 1;
+        }
+
+        this.image = Files.createTempFile("iot-load-", ".jpg");
+        try {
+            byte[] bytes = new byte[imageSize];
+            new Random(0).nextBytes(bytes);
+            Files.write(this.image, bytes);
+
+            // Devices of each user are numbered from 1
+            for (int i = 0; i < devices; i++)
+                this.devices.add(new SimulatedDevice("load" + (i % users), i / users + 1));
+
+            System.out.println(String.format("# %d devices of %d users on %s:%d, %.1f requests/s for %d s after %d s of warmup, mix %s",
+                devices, users, this.host, this.port, rate, duration, warmup, mix));
+            long begin = System.nanoTime();
+            if (!setup(program, domain, users)) {
+                System.out.println("Failed to set up the devices");
+                return 1;
+            }
+            System.out.println(String.format("# set up in %.1f s", (System.nanoTime() - begin) / 1e9));
+
+            long seed = Long.parseLong(this.options.getOrDefault("--seed", "1"));
+            long elapsed = load(domain, mix, rate, warmup, duration, seed);
+            report(elapsed);
+            return 0;
+        } finally {
+            for (SimulatedDevice device : this.devices) {
+                if (device.client != null)
+                    device.client.terminate();
+            }
+            Files.deleteIfExists(this.image);
+        }
+    }
+
+    /**
+     * Connects and authenticates every device, creates the
+     * domain, registers the devices and sends their first
+     * temperature and image, so every command has data.
+     * @return
+     *      True if every device is ready, false otherwise.
+     */
+    private boolean setup(File program, String domain, int users) throws InterruptedException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<Boolean>> connected = new ArrayList<>();
+            for (SimulatedDevice device : this.devices)
+                connected.add(CompletableFuture.supplyAsync(() -> connect(device, program), executor));
+            if (!allTrue(connected))
+                return false;
+        }
+
+        // The first device creates the domain and adds every user
+        IoTAsyncClient owner = this.devices.get(0).client;
+        Outcome created = owner.createDomain(domain).join();
+        if (created != Outcome.OK && created != Outcome.ALREADY_EXISTS)
+            return false;
+        for (int u = 1; u < users; u++) {
+            Outcome added = owner.addUserDomain("load" + u, domain).join();
+            if (added != Outcome.OK && added != Outcome.ALREADY_EXISTS)
+                return false;
+        }
+
+        List<CompletableFuture<Boolean>> ready = new ArrayList<>();
+        for (SimulatedDevice device : this.devices) {
+            IoTAsyncClient client = device.client;
+            ready.add(client.registerDevice(domain)
+                .thenCombine(client.sendTemp(20), (registered, sent) ->
+                    (registered == Outcome.OK || registered == Outcome.ALREADY_EXISTS) && sent == Outcome.OK)
+                .thenCombine(client.sendImage(this.image.toString()), (ok, sent) -> ok && sent == Outcome.OK));
+        }
+        return allTrue(ready);
+    }
+
+    private boolean connect(SimulatedDevice device, File program) {
+        Optional<IoTAsyncClient> client = IoTAsyncClient.connect(this.host, this.port);
+        if (!client.isPresent())
+            return false;
+        device.client = client.get();
+
+        Outcome user = device.client.authenticateUser(device.user, PASSWORD).join();
+        if (user != Outcome.OK && user != Outcome.NEW_USER)
+            return false;
+        return device.client.authenticateDevice(device.devId).join() == Outcome.OK
+            && device.client.authenticateProgram(program.getName(), program.length()).join() == Outcome.OK;
+    }
+
+    /**
+     * Issues requests at the given rate, only recording
+     * those meant to start after the warmup.
+     * @return
+     *      Measured time in nanoseconds, until the last
+     *      request finished.
+     */
+    private long load(String domain, Map<Command, Integer> mix, double rate, int warmup, int duration, long seed)
+            throws InterruptedException {
+        Random random = new Random(seed);
+        Command[] commands = weighted(mix);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measured = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measured + TimeUnit.SECONDS.toNanos(duration);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long intended = start; intended < end; intended += interval) {
+                long wait = intended - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+
+                SimulatedDevice device = this.devices.get(random.nextInt(this.devices.size()));
+                SimulatedDevice target = this.devices.get(random.nextInt(this.devices.size()));
+                Command command = commands[random.nextInt(commands.length)];
+                float temperature = 15 + random.nextFloat() * 10;
+                long scheduled = intended;
+                boolean recorded = intended >= measured;
+
+                this.inFlight.increment();
+                executor.execute(() -> {
+                    Outcome outcome;
+                    try {
+                        outcome = issue(command, device, target, domain, temperature).join();
+                    } catch (RuntimeException e) {
+                        outcome = Outcome.ERROR;
+                    }
+                    if (recorded) {
+                        long latency = System.nanoTime() - scheduled;
+                        Stats stats = this.stats.get(command);
+                        stats.latency.record(latency);
+                        this.total.record(latency);
+                        stats.outcomes.incrementAndGet(outcome.ordinal());
+                    }
+                    this.inFlight.decrement();
+                });
+            }
+
+            executor.shutdown();
+            if (!executor.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS))
+                System.out.println(String.format("# %d requests didn't finish", this.inFlight.sum()));
+        }
+        return System.nanoTime() - measured;
+    }
+
+    private CompletableFuture<Outcome> issue(Command command, SimulatedDevice device, SimulatedDevice target,
+            String domain, float temperature) {
+        IoTAsyncClient client = device.client;
+        switch (command) {
+            case ET:
+            return client.sendTemp(temperature);
+
+            case EI:
+            return client.sendImage(this.image.toString());
+
+            case RT:
+            return client.getTemperatures(domain).thenApply(IoTAsyncClient.Result::getOutcome);
+
+            case RI:
+            return client.getUserImage(target.user, target.devId).thenApply(IoTAsyncClient.Result::getOutcome);
+
+            default:
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Prints the throughput and latency of every command,
+     * and the outcomes other than OK.
+     */
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(ROW, "cmd", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+
+        long errors = 0;
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<Command, Stats> entry : this.stats.entrySet()) {
+            Stats stats = entry.getValue();
+            long count = stats.latency.getCount();
+            if (count == 0)
+                continue;
+
+            long failed = 0;
+            for (Outcome outcome : Outcome.values()) {
+                long n = stats.outcomes.get(outcome.ordinal());
+                if (outcome != Outcome.OK && n > 0) {
+                    failed += n;
+                    failures.add(String.format("%s %s=%d", entry.getKey(), outcome, n));
+                }
+            }
+            errors += failed;
+            row(entry.getKey().toString(), stats.latency, seconds, failed);
+        }
+        row("all", this.total, seconds, errors);
+
+        if (!failures.isEmpty())
+            System.out.println("errors: " + String.join(", ", failures));
+    }
+
+    private static void row(String name, IoTHistogram latency, double seconds, long errors) {
+        System.out.println(String.format(ROW, name, latency.getCount(),
+            String.format("%.1f", latency.getCount() / seconds),
+            millis(latency.getPercentile(50)), millis(latency.getPercentile(99)),
+            millis(latency.getPercentile(99.9)), millis(latency.getMax()), errors));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static Map<Command, Integer> parseMix(String mix) {
+        Map<Command, Integer> weights = new EnumMap<>(Command.class);
+        try {
+            for (String entry : mix.split(",")) {
+                String[] pair = entry.split("=");
+                if (pair.length != 2)
+                    throw new IllegalArgumentException("Invalid mix: " + mix);
+                int weight = Integer.parseInt(pair[1].trim());
+                if (weight < 0)
+                    throw new IllegalArgumentException("Invalid mix: " + mix);
+                weights.put(Command.valueOf(pair[0].trim().toUpperCase()), weight);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid mix: " + mix);
+        }
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() == 0)
+            throw new IllegalArgumentException("Invalid mix: " + mix);
+        return weights;
+    }
+
+    /**
+     * Repeats each command as many times as it's weight,
+     * so a uniform pick follows the mix.
+     */
+    private static Command[] weighted(Map<Command, Integer> mix) {
+        List<Command> commands = new ArrayList<>();
+        for (Map.Entry<Command, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++)
+                commands.add(entry.getKey());
+        }
+        return commands.toArray(new Command[0]);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static boolean allTrue(List<CompletableFuture<Boolean>> futures) {
+        boolean ok = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                ok &= future.join();
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,327 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmark harness of the server hot paths, in the
+ * spirit of JMH without depending on it. Every benchmark
+ * runs in fresh JVMs (forks) started in an empty working
+ * directory, with warmup iterations before the measured
+ * ones, and reports the mean throughput and it's standard
+ * deviation over all measured iterations.
+ * Results can be saved and later compared with a baseline,
+ * the exit code is 1 if any benchmark regressed.
+ * The benchmarks are defined in {@link IoTHotPathBenchmarks}.
+ */
+public class IoTMicroBench {
+    private static final String USAGE = "USAGE: IoTMicroBench [--list] [--filter <regex>] [--forks <n>] " +
+        "[--warmup <iterations>] [--iterations <n>] [--time <ms per iteration>] " +
+        "[--save <file>] [--baseline <file>] [--tolerance <percent>]";
+    private static final String CHILD = "--child";
+    private static final String RESULT = "ITERATION ";
+    private static final String ROW = "%-45s %8s %16s %14s %14s";
+
+    /**
+     * Operation measured by the harness.
+     */
+    public interface Benchmark {
+        /**
+         * Prepares the state, not measured.
+         */
+        default void setup() throws Exception {
+        }
+
+        /**
+         * Runs one operation, possibly in several threads at
+         * the same time. The result is consumed by the harness
+         * so the JIT can't remove the operation.
+         */
+        Object run() throws Exception;
+
+        default void teardown() throws Exception {
+        }
+
+        /**
+         * Number of threads running the operation.
+         */
+        default int threads() {
+            return 1;
+        }
+    }
+
+    // Consumed results, only written after each iteration
+    private static volatile int sink;
+    // Cleared to end an iteration, a plain load on most CPUs
+    private static volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        boolean list = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--list")) {
+                list = true;
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        Map<String, Supplier<Benchmark>> benchmarks = IoTHotPathBenchmarks.all();
+        int warmup, iterations, forks;
+        long time;
+        double tolerance;
+        try {
+            warmup = Integer.parseInt(options.getOrDefault("--warmup", "5"));
+            iterations = Integer.parseInt(options.getOrDefault("--iterations", "5"));
+            forks = Math.max(1, Integer.parseInt(options.getOrDefault("--forks", "2")));
+            time = Long.parseLong(options.getOrDefault("--time", "1000"));
+            tolerance = Double.parseDouble(options.getOrDefault("--tolerance", "10"));
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        // Runs a single benchmark in this JVM, for the parent
+        if (options.containsKey(CHILD)) {
+            Supplier<Benchmark> benchmark = benchmarks.get(options.get(CHILD));
+            if (benchmark == null)
+                System.exit(2);
+            runChild(benchmark.get(), warmup, iterations, time);
+            System.exit(0);
+        }
+
+        Pattern filter = Pattern.compile(options.getOrDefault("--filter", ".*"));
+        List<String> selected = new ArrayList<>();
+        for (String name : benchmarks.keySet()) {
+            if (filter.matcher(name).find())
+                selected.add(name);
+        }
+        if (list) {
+            selected.forEach(System.out::println);
+            return;
+        }
+
+        System.out.println(String.format("# %s %s, %d cpus, %d forks, %d warmup and %d measured iterations of %d ms",
+            System.getProperty("java.vm.name"), System.getProperty("java.version"),
+            Runtime.getRuntime().availableProcessors(), forks, warmup, iterations, time));
+        System.out.println(String.format(ROW, "benchmark", "threads", "ops/s", "stddev", "us/op"));
+
+        Map<String, double[]> baseline = options.containsKey("--baseline") ?
+            readResults(Paths.get(options.get("--baseline"))) : new HashMap<>();
+        Map<String, double[]> results = new HashMap<>();
+        List<String> regressions = new ArrayList<>();
+        for (String name : selected) {
+            List<Double> scores = new ArrayList<>();
+            for (int fork = 0; fork < forks; fork++) {
+                List<Double> forkScores = fork(name, warmup, iterations, time);
+                if (forkScores == null) {
+                    scores = null;
+                    break;
+                }
+                scores.addAll(forkScores);
+            }
+            if (scores == null || scores.isEmpty()) {
+                System.out.println(String.format(ROW, name, "-", "failed", "-", "-"));
+                continue;
+            }
+
+            int threads = benchmarks.get(name).get().threads();
+            double mean = scores.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+            double variance = scores.stream().mapToDouble(s -> (s - mean) * (s - mean)).sum() / Math.max(1, scores.size() - 1);
+            double stddev = Math.sqrt(variance);
+            results.put(name, new double[]{mean, stddev});
+
+            String row = String.format(ROW, name, threads, String.format("%.1f", mean),
+                String.format("+/- %.1f", stddev), String.format("%.3f", 1e6 * threads / mean));
+            double[] previous = baseline.get(name);
+            if (previous != null) {
+                double change = (mean - previous[0]) / previous[0] * 100;
+                row += String.format("  %+.1f%% vs baseline", change);
+                if (change < -tolerance) {
+                    row += " REGRESSION";
+                    regressions.add(name);
+                }
+            }
+            System.out.println(row);
+        }
+
+        if (options.containsKey("--save"))
+            writeResults(Paths.get(options.get("--save")), results);
+        if (!regressions.isEmpty()) {
+            System.out.println(String.format("%d benchmarks regressed more than %.1f%%: %s",
+                regressions.size(), tolerance, regressions));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a benchmark in a new JVM, with the same class
+     * path and JVM options, in an empty directory.
+     * @return
+     *      Operations per second of each measured iteration
+     *      or null if the fork failed.
+     */
+    private static List<Double> fork(String name, int warmup, int iterations, long time) throws IOException, InterruptedException {
+        Path workdir = Files.createTempDirectory("iot-microbench-");
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        // Relative class paths must still work from the new directory
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add(IoTMicroBench.class.getName());
+        command.add(CHILD);
+        command.add(name);
+        command.add("--warmup");
+        command.add(Integer.toString(warmup));
+        command.add("--iterations");
+        command.add(Integer.toString(iterations));
+        command.add("--time");
+        command.add(Long.toString(time));
+
+        Process process = new ProcessBuilder(command)
+            .directory(workdir.toFile())
+            .redirectErrorStream(true)
+            .start();
+
+        List<Double> scores = new ArrayList<>();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT))
+                    scores.add(Double.parseDouble(line.substring(RESULT.length())));
+                else
+                    output.add(line);
+            }
+        }
+        int status = process.waitFor();
+        delete(workdir);
+        if (status != 0) {
+            // Shows why it failed
+            output.forEach(System.err::println);
+            return null;
+        }
+        return scores;
+    }
+
+    private static void runChild(Benchmark benchmark, int warmup, int iterations, long time) throws Exception {
+        benchmark.setup();
+        try {
+            for (int i = 0; i < warmup; i++)
+                iteration(benchmark, time);
+            for (int i = 0; i < iterations; i++)
+                System.out.println(RESULT + iteration(benchmark, time));
+        } finally {
+            benchmark.teardown();
+        }
+    }
+
+    /**
+     * Runs the operation in the benchmark's threads for
+     * a period of time.
+     * @return
+     *      Operations per second of all threads.
+     */
+    private static double iteration(Benchmark benchmark, long time) throws InterruptedException {
+        int threads = benchmark.threads();
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        running = true;
+        List<Thread> workers = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        Object lock = new Object();
+
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                int consumed = 0;
+                long count = 0;
+                try {
+                    start.await();
+                    while (running) {
+                        consumed += System.identityHashCode(benchmark.run());
+                        count++;
+                    }
+                } catch (Exception e) {
+                    synchronized (lock) {
+                        failures.add(e);
+                    }
+                }
+                operations.add(count);
+                sink ^= consumed;
+            }));
+        }
+        for (Thread worker : workers)
+            worker.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(time);
+        running = false;
+        long elapsed = System.nanoTime() - begin;
+        for (Thread worker : workers)
+            worker.join();
+
+        if (!failures.isEmpty())
+            throw new IllegalStateException("Benchmark failed", failures.get(0));
+        return operations.sum() / (elapsed / 1e9);
+    }
+
+    private static Map<String, double[]> readResults(Path file) throws IOException {
+        Map<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] tokens = line.split("\t");
+            if (tokens.length == 3)
+                results.put(tokens[0], new double[]{Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2])});
+        }
+        return results;
+    }
+
+    private static void writeResults(Path file, Map<String, double[]> results) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, double[]> result : results.entrySet()) {
+                writer.write(String.format("%s\t%s\t%s", result.getKey(), result.getValue()[0], result.getValue()[1]));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0)
+                sb.append(File.pathSeparator);
+            sb.append(Paths.get(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import utils.IoTMessage;
+import utils.IoTMessageType;
+import utils.IoTOpcodes;
+import utils.IoTReadings;
+import utils.IoTTemperatureStats;
+import utils.IoTTemperatures;
+
+/**
+ * Asynchronous client of the server. Every request is
+ * pipelined on a single connection and returns a future
+ * completed with the typed outcome of the response, so
+ * one thread can keep many requests in flight.
+ * Futures are completed by the thread reading the
+ * responses, callbacks attached to them shouldn't block.
+ * A gateway attaches the devices it fronts after
+ * authenticating the user once and tags each device
+ * request with the device id.
+ */
+public class IoTAsyncClient implements AutoCloseable {
+
+    /**
+     * Outcome of a request.
+     */
+    public enum Outcome {
+        // Request accepted
+        OK,
+        // User created by the authentication
+        NEW_USER,
+        WRONG_PASSWORD,
+        // Device or program authentication refused
+        REJECTED,
+        ALREADY_EXISTS,
+        NO_PERMISSIONS,
+        NO_USER,
+        NO_DEVICE,
+        NO_DOMAIN,
+        NO_DATA,
+        BAD_FORMAT,
+        // Socket error or unexpected response
+        ERROR;
+
+        private static Outcome of(IoTMessageType response) {
+            if (response == null || response.getOpcode() == null)
+                return ERROR;
+
+            switch (response.getOpcode()) {
+                case OK_ACCEPTED:
+                case OK_USER:
+                case OK_DEVID:
+                case OK_TESTED:
+                return OK;
+
+                case OK_NEW_USER:
+                return NEW_USER;
+
+                case WRONG_PWD:
+                return WRONG_PASSWORD;
+
+                case NOK_DEVID:
+                case NOK_TESTED:
+                case NOK:
+                return REJECTED;
+
+                case NOK_ALREADY_EXISTS:
+                return ALREADY_EXISTS;
+
+                case NOK_NO_PERMISSIONS:
+                return NO_PERMISSIONS;
+
+                case NOK_NO_USER:
+                return NO_USER;
+
+                case NOK_NO_DEVICE:
+                return NO_DEVICE;
+
+                case NOK_NO_DOMAIN:
+                return NO_DOMAIN;
+
+                case NOK_NO_DATA:
+                return NO_DATA;
+
+                case NOK_BAD_FORMAT:
+                return BAD_FORMAT;
+
+                default:
+                return ERROR;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a request that returns data.
+     */
+    public static class Result<T> {
+        private final Outcome outcome;
+        private final T value;
+
+        private Result(Outcome outcome, T value) {
+            this.outcome = outcome;
+            this.value = value;
+        }
+
+        public Outcome getOutcome() {
+            return this.outcome;
+        }
+
+        /**
+         * Returns the data of the response, present only
+         * if the outcome is OK.
+         */
+        public Optional<T> getValue() {
+            return Optional.ofNullable(this.value);
+        }
+
+        @Override
+        public String toString() {
+            return this.outcome.toString();
+        }
+    }
+
+    private final IoTClientStub stub;
+
+    private IoTAsyncClient(IoTClientStub stub) {
+        this.stub = stub;
+        this.stub.enablePipelining();
+    }
+
+    /**
+     * Connects to the server.
+     * @param serverIp
+     *      Server ip address.
+     * @param serverPort
+     *      Server port.
+     * @return
+     *      Connected client or nothing if the connection
+     *      failed.
+     */
+    public static Optional<IoTAsyncClient> connect(String serverIp, int serverPort) {
+        IoTClientStub stub = IoTClientStub.connect(serverIp, serverPort);
+        if (stub == null)
+            return Optional.empty();
+        return Optional.of(new IoTAsyncClient(stub));
+    }
+
+    /**
+     * Authenticates user, creating it if it doesn't exist.
+     * @return
+     *      OK, NEW_USER, WRONG_PASSWORD or ERROR.
+     */
+    public CompletableFuture<Outcome> authenticateUser(String user, String password) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.VALIDATE_USER);
+        request.setUserId(user);
+        request.setUserPwd(password);
+        return submit(request);
+    }
+
+    /**
+     * Authenticates device of the current user.
+     * @return
+     *      OK, REJECTED or ERROR.
+     */
+    public CompletableFuture<Outcome> authenticateDevice(int devId) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.VALIDATE_DEVICE);
+        request.setDevId(devId);
+        return submit(request);
+    }
+
+    /**
+     * Authenticates the executing program.
+     * @return
+     *      OK, REJECTED or ERROR.
+     */
+    public CompletableFuture<Outcome> authenticateProgram(String programName, long size) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.VALIDATE_PROGRAM);
+        request.setProgramName(programName);
+        request.setProgramSize(size);
+        return submit(request);
+    }
+
+    /**
+     * Attaches another device of the current user to the
+     * session, the user must be authenticated.
+     * @return
+     *      OK, REJECTED if the device is in use by another
+     *      session, NO_PERMISSIONS or ERROR.
+     */
+    public CompletableFuture<Outcome> attachDevice(int devId) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.ATTACH_DEVICE);
+        request.setDevId(devId);
+        return submit(request);
+    }
+
+    /**
+     * Detaches a device attached to the session.
+     * @return
+     *      OK, NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Outcome> detachDevice(int devId) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.DETACH_DEVICE);
+        request.setDevId(devId);
+        return submit(request);
+    }
+
+    /**
+     * Creates a domain owned by the current user.
+     * @return
+     *      OK, ALREADY_EXISTS or ERROR.
+     */
+    public CompletableFuture<Outcome> createDomain(String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.CREATE_DOMAIN);
+        request.setDomainName(domainName);
+        return submit(request);
+    }
+
+    /**
+     * Adds an user to a domain of the current user.
+     * @return
+     *      OK, ALREADY_EXISTS, NO_USER, NO_DOMAIN,
+     *      NO_PERMISSIONS or ERROR.
+     */
+    public CompletableFuture<Outcome> addUserDomain(String userName, String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.ADD_USER_DOMAIN);
+        request.setUserId(userName);
+        request.setDomainName(domainName);
+        return submit(request);
+    }
+
+    /**
+     * Registers the current device to a domain.
+     * @return
+     *      OK, ALREADY_EXISTS, NO_DOMAIN, NO_PERMISSIONS
+     *      or ERROR.
+     */
+    public CompletableFuture<Outcome> registerDevice(String domainName) {
+        return registerDevice(IoTMessage.OWN_DEVICE, domainName);
+    }
+
+    /**
+     * Registers a device of the session to a domain.
+     * @param devId
+     *      Id of an attached device, or IoTMessage.OWN_DEVICE
+     *      for the current one.
+     * @return
+     *      OK, ALREADY_EXISTS, NO_DOMAIN, NO_PERMISSIONS,
+     *      NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Outcome> registerDevice(int devId, String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.REGISTER_DEVICE_DOMAIN);
+        request.setDevId(devId);
+        request.setDomainName(domainName);
+        return submit(request);
+    }
+
+    /**
+     * Sends a temperature reading of the current device.
+     * @return
+     *      OK or ERROR.
+     */
+    public CompletableFuture<Outcome> sendTemp(float temperature) {
+        return sendTemp(IoTMessage.OWN_DEVICE, temperature);
+    }
+
+    /**
+     * Sends a temperature reading of a device of the session.
+     * @param devId
+     *      Id of an attached device, or IoTMessage.OWN_DEVICE
+     *      for the current one.
+     * @return
+     *      OK, NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Outcome> sendTemp(int devId, float temperature) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.SEND_TEMP);
+        request.setDevId(devId);
+        request.setTemp(temperature);
+        return submit(request);
+    }
+
+    /**
+     * Sends several readings of the current device.
+     * @param readings
+     *      Readings in timestamp order.
+     * @return
+     *      OK, BAD_FORMAT or ERROR.
+     */
+    public CompletableFuture<Outcome> sendTemps(IoTReadings readings) {
+        return sendTemps(IoTMessage.OWN_DEVICE, readings);
+    }
+
+    /**
+     * Sends several readings of a device of the session.
+     * @param devId
+     *      Id of an attached device, or IoTMessage.OWN_DEVICE
+     *      for the current one.
+     * @param readings
+     *      Readings in timestamp order.
+     * @return
+     *      OK, BAD_FORMAT, NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Outcome> sendTemps(int devId, IoTReadings readings) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.SEND_TEMP_BATCH);
+        request.setDevId(devId);
+        request.setReadings(readings);
+        return submit(request);
+    }
+
+    /**
+     * Sends an image of the current device. The file is
+     * read by the calling thread, which returns after the
+     * whole image is written to the connection.
+     * @param filepath
+     *      Path to the image.
+     * @return
+     *      OK, BAD_FORMAT if the file can't be read, or ERROR.
+     */
+    public CompletableFuture<Outcome> sendImage(String filepath) {
+        return sendImage(IoTMessage.OWN_DEVICE, filepath);
+    }
+
+    /**
+     * Sends an image of a device of the session.
+     * @param devId
+     *      Id of an attached device, or IoTMessage.OWN_DEVICE
+     *      for the current one.
+     * @param filepath
+     *      Path to the image.
+     * @return
+     *      OK, BAD_FORMAT if the file can't be read,
+     *      NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Outcome> sendImage(int devId, String filepath) {
+        File file = new File(filepath);
+        if (!file.isFile())
+            return CompletableFuture.completedFuture(Outcome.BAD_FORMAT);
+
+        try (FileChannel image = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            IoTMessageType request = new IoTMessage();
+            request.setOpCode(IoTOpcodes.SEND_IMAGE);
+            request.setDevId(devId);
+            request.setImageName(Paths.get(filepath).getFileName().toString());
+            request.setImageSize(image.size());
+            return this.stub.submit(request, image, null).thenApply(Outcome::of);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(Outcome.BAD_FORMAT);
+        }
+    }
+
+    /**
+     * Gets the latest temperature of every device of a domain.
+     * @return
+     *      Temperatures by device ("user:devId") if OK,
+     *      otherwise NO_PERMISSIONS, NO_DOMAIN or ERROR.
+     */
+    public CompletableFuture<Result<IoTTemperatures>> getTemperatures(String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP);
+        request.setDomainName(domainName);
+        return this.stub.submit(request).thenApply(response -> {
+            Outcome outcome = Outcome.of(response);
+            if (outcome != Outcome.OK)
+                return new Result<>(outcome, null);
+            if (response.getTemperatures() == null)
+                return new Result<>(Outcome.ERROR, null);
+            return new Result<>(outcome, response.getTemperatures());
+        });
+    }
+
+    /**
+     * Subscribes to the temperatures of a domain, the latest
+     * temperature of each device and then every new one are
+     * pushed by the server, updates of the same device
+     * close together may be merged.
+     * @param listener
+     *      Receives the updates of every subscribed domain,
+     *      replaces the previous one. It's called by the
+     *      thread reading the responses and shouldn't block.
+     * @return
+     *      OK, NO_PERMISSIONS, NO_DOMAIN or ERROR.
+     */
+    public CompletableFuture<Outcome> subscribeTemperatures(String domainName, Consumer<IoTTemperatures> listener) {
+        this.stub.setUpdateListener(listener);
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.SUBSCRIBE_TEMP);
+        request.setDomainName(domainName);
+        return this.stub.submit(request).thenApply(Outcome::of);
+    }
+
+    /**
+     * Stops the temperature updates of a domain.
+     * @return
+     *      OK, NO_DATA if it wasn't subscribed, NO_DOMAIN or
+     *      ERROR.
+     */
+    public CompletableFuture<Outcome> unsubscribeTemperatures(String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.UNSUBSCRIBE_TEMP);
+        request.setDomainName(domainName);
+        return this.stub.submit(request).thenApply(Outcome::of);
+    }
+
+    /**
+     * Gets a summary of the readings of the devices of a
+     * domain within a time range.
+     * @param buckets
+     *      Number of time buckets to split the range in,
+     *      0 for none.
+     * @return
+     *      Summary if OK, otherwise NO_DATA, NO_PERMISSIONS,
+     *      NO_DOMAIN, BAD_FORMAT or ERROR.
+     */
+    public CompletableFuture<Result<IoTTemperatureStats>> getTemperatureStats(String domainName, long from, long to, int buckets) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_STATS);
+        request.setDomainName(domainName);
+        request.setTimeFrom(from);
+        request.setTimeTo(to);
+        request.setCount(buckets);
+        return this.stub.submit(request).thenApply(response -> {
+            Outcome outcome = Outcome.of(response);
+            if (outcome != Outcome.OK)
+                return new Result<>(outcome, null);
+            if (response.getTemperatureStats() == null)
+                return new Result<>(Outcome.ERROR, null);
+            return new Result<>(outcome, response.getTemperatureStats());
+        });
+    }
+
+    /**
+     * Gets the readings of a device within a time range.
+     * @param from
+     *      Start of the range in milliseconds since epoch.
+     * @param to
+     *      End of the range in milliseconds since epoch.
+     * @return
+     *      Readings if OK, otherwise NO_DATA, NO_PERMISSIONS,
+     *      NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Result<IoTReadings>> getTemperatureHistory(String userId, int devId, long from, long to) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_RANGE);
+        request.setUserId(userId);
+        request.setDevId(devId);
+        request.setTimeFrom(from);
+        request.setTimeTo(to);
+        return this.stub.submit(request).thenApply(response -> {
+            Outcome outcome = Outcome.of(response);
+            if (outcome != Outcome.OK)
+                return new Result<>(outcome, null);
+            if (response.getReadings() == null)
+                return new Result<>(Outcome.ERROR, null);
+            return new Result<>(outcome, response.getReadings());
+        });
+    }
+
+    /**
+     * Gets the most recent readings of a device.
+     * @param count
+     *      Maximum number of readings.
+     * @return
+     *      Readings, the most recent last, if OK, otherwise
+     *      NO_DATA, NO_PERMISSIONS, NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Result<IoTReadings>> getRecentTemperatures(String userId, int devId, int count) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_RECENT);
+        request.setUserId(userId);
+        request.setDevId(devId);
+        request.setCount(count);
+        return this.stub.submit(request).thenApply(response -> {
+            Outcome outcome = Outcome.of(response);
+            if (outcome != Outcome.OK)
+                return new Result<>(outcome, null);
+            if (response.getReadings() == null)
+                return new Result<>(Outcome.ERROR, null);
+            return new Result<>(outcome, response.getReadings());
+        });
+    }
+
+    /**
+     * Downloads the image of a device to a file in the
+     * working directory named after the image.
+     * @return
+     *      File name if OK, otherwise NO_DATA, NO_PERMISSIONS,
+     *      NO_USER, NO_DEVICE or ERROR.
+     */
+    public CompletableFuture<Result<String>> getUserImage(String userId, int devId) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_USER_IMAGE);
+        request.setUserId(userId);
+        request.setDevId(devId);
+        return this.stub.submit(request, null, this.stub::receiveImage).thenApply(response -> {
+            Outcome outcome = Outcome.of(response);
+            if (outcome != Outcome.OK)
+                return new Result<>(outcome, null);
+            return new Result<>(outcome, Paths.get(response.getImageName()).getFileName().toString());
+        });
+    }
+
+    /**
+     * Tells the server the session is over and closes
+     * the connection once it answers.
+     * @return
+     *      OK, REJECTED or ERROR.
+     */
+    public CompletableFuture<Outcome> terminate() {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.EXIT);
+        return this.stub.submit(request).handle((response, e) -> {
+            this.stub.disconnect();
+            return Outcome.of(response);
+        });
+    }
+
+    /**
+     * Terminates the session and waits for it.
+     */
+    @Override
+    public void close() {
+        terminate().join();
+    }
+
+    private CompletableFuture<Outcome> submit(IoTMessageType request) {
+        return this.stub.submit(request).thenApply(Outcome::of);
+    }
+}
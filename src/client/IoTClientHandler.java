@@ -1,6 +1,7 @@
 package client;
 
 import utils.IoTCLI;
+import utils.IoTReadings;
 
 /**
  * Interacts with user and deals with
@@ -70,6 +71,9 @@ public class IoTClientHandler {
                 case "ET":
                     etCommand(tokens);
                     break;
+                case "ETB":
+                    etbCommand(tokens);
+                    break;
                 case "EI":
                     eiCommand(tokens);
                     break;
@@ -79,6 +83,21 @@ public class IoTClientHandler {
                 case "RI":
                     riCommand(tokens);
                     break;
+                case "RH":
+                    rhCommand(tokens);
+                    break;
+                case "RL":
+                    rlCommand(tokens);
+                    break;
+                case "RS":
+                    rsCommand(tokens);
+                    break;
+                case "ST":
+                    stCommand(tokens);
+                    break;
+                case "UT":
+                    utCommand(tokens);
+                    break;
                 case "EXIT":
                     return 0;
                 default:
@@ -257,6 +276,46 @@ public class IoTClientHandler {
 
     }
 
+    /**
+     * Sends several temperature readings to the
+     * server in a single request
+     * @param args
+     */
+    private void etbCommand(String[] args) {
+        if (args.length == 1) {
+            cli.printErr("Missing <temperature> (in float)\n");
+            return;
+        }
+
+        // Same timestamp order as typed
+        long now = System.currentTimeMillis();
+        IoTReadings readings = new IoTReadings(args.length - 1);
+        try {
+            for (int i = 1; i < args.length; i++)
+                readings.add(now, Float.parseFloat(args[i].replace(",", ".")));
+        } catch (NumberFormatException e) {
+            cli.printErr("Wrong number format!");
+            return;
+        }
+        cli.print(String.format("-> /temperatures %d", readings.size()));
+        int status = stub.sendTemps(readings);
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 0:
+                cli.printSuc("Sent the temperature measurements successfully!");
+                break;
+            case -1:
+                cli.printErr("Network error!");
+                break;
+            case -2:
+                cli.printErr("Invalid temperature measurements!");
+                break;
+        
+            default:
+                break;
+        }
+    }
+
     /**
      * Sends an image to the server
      * @param args
@@ -383,6 +442,273 @@ public class IoTClientHandler {
         }
     }
 
+    /**
+     * Receive the temperature history of a device of a user,
+     * optionally within a time range in milliseconds since epoch
+     * @param args
+     */
+    private void rhCommand(String[] args) {
+        if (args.length == 1) {
+            cli.printErr("Missing <user id>:<device id>");
+            return;
+        }
+
+        if (args.length > 4) {
+            cli.printErr("Too many arguments");
+            return;
+        }
+
+        String[] tokens = args[1].split(":", 2);
+        if (tokens.length < 2) {
+            cli.printErr("Missing arguments, we're expecting: <user id>:<device id>");
+            return;
+        }
+
+        String userId = tokens[0];
+        int devId;
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        try {
+            devId = Integer.parseInt(tokens[1]);
+            if (args.length > 2)
+                from = Long.parseLong(args[2]);
+            if (args.length > 3)
+                to = Long.parseLong(args[3]);
+        } catch (NumberFormatException e) {
+            cli.printErr("Wrong number format!");
+            return;
+        }
+
+        cli.print(String.format("-> /temperature history %s [%d, %d]", args[1], from, to));
+        int status = stub.getTemperatureHistory(userId, devId, from, to);
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 1:
+                cli.printErr("No temperature records in the range!");
+                break;
+            case 0:
+                cli.printSuc("Received the temperature history successfully!");
+                break;
+            case -1:
+                cli.printErr("No permissions!");
+                break;
+            case -2:
+                cli.printErr("The device doesn't exist!");
+                break;
+            case -3:
+                cli.printErr("Network error!");
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Retrieves the most recent temperature readings of a
+     * device.
+     * @param args
+     */
+    private void rlCommand(String[] args) {
+        if (args.length < 3) {
+            cli.printErr("Missing arguments, we're expecting: <user id>:<device id> <count>");
+            return;
+        }
+
+        if (args.length > 3) {
+            cli.printErr("Too many arguments");
+            return;
+        }
+
+        String[] tokens = args[1].split(":", 2);
+        if (tokens.length < 2) {
+            cli.printErr("Missing arguments, we're expecting: <user id>:<device id>");
+            return;
+        }
+
+        String userId = tokens[0];
+        int devId;
+        int count;
+        try {
+            devId = Integer.parseInt(tokens[1]);
+            count = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            cli.printErr("Wrong number format!");
+            return;
+        }
+        if (count <= 0) {
+            cli.printErr("The count must be positive!");
+            return;
+        }
+
+        cli.print(String.format("-> /temperature recent %s %d", args[1], count));
+        int status = stub.getRecentTemperatures(userId, devId, count);
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 1:
+                cli.printErr("No temperature records!");
+                break;
+            case 0:
+                cli.printSuc("Received the recent temperatures successfully!");
+                break;
+            case -1:
+                cli.printErr("No permissions!");
+                break;
+            case -2:
+                cli.printErr("The device doesn't exist!");
+                break;
+            case -3:
+                cli.printErr("Network error!");
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Retrieves a summary of the temperature readings of a
+     * domain.
+     * @param args
+     */
+    private void rsCommand(String[] args) {
+        if (args.length == 1) {
+            cli.printErr("Missing <domain name>");
+            return;
+        }
+
+        if (args.length > 5) {
+            cli.printErr("Too many arguments");
+            return;
+        }
+
+        String domainName = args[1];
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        int buckets = 0;
+        try {
+            if (args.length > 2)
+                from = Long.parseLong(args[2]);
+            if (args.length > 3)
+                to = Long.parseLong(args[3]);
+            if (args.length > 4)
+                buckets = Integer.parseInt(args[4]);
+        } catch (NumberFormatException e) {
+            cli.printErr("Wrong number format!");
+            return;
+        }
+        if (buckets < 0) {
+            cli.printErr("The number of buckets can't be negative!");
+            return;
+        }
+
+        cli.print(String.format("-> /temperature stats %s [%d, %d] %d", domainName, from, to, buckets));
+        int status = stub.getTemperatureStats(domainName, from, to, buckets);
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 1:
+                cli.printErr("No temperature records in the range!");
+                break;
+            case 0:
+                cli.printSuc("Received the temperature summary successfully!");
+                break;
+            case -1:
+                cli.printErr("No permissions!");
+                break;
+            case -2:
+                cli.printErr("The domain doesn't exist!");
+                break;
+            case -3:
+                cli.printErr("Network error!");
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Subscribes to the temperatures of a domain, the
+     * updates are printed as they arrive.
+     * @param args
+     */
+    private void stCommand(String[] args) {
+        if (args.length == 1) {
+            cli.printErr("Missing <domain name>");
+            return;
+        }
+
+        if (args.length > 2) {
+            cli.printErr("Too many arguments");
+            return;
+        }
+
+        String domainName = args[1];
+        cli.print(String.format("-> /subscribe %s", domainName));
+        int status = stub.subscribeTemperatures(domainName, temperatures -> {
+            for (int i = 0; i < temperatures.size(); i++) {
+                cli.printInfo(String.format("Device %s - Temp %f",
+                    temperatures.getDevice(i), temperatures.getValue(i)));
+            }
+        });
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 0:
+                cli.printSuc("Subscribed to the temperatures of the domain!");
+                break;
+            case -1:
+                cli.printErr("No permissions!");
+                break;
+            case -2:
+                cli.printErr("The domain doesn't exist!");
+                break;
+            case -3:
+                cli.printErr("Network error!");
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Stops the temperature updates of a domain.
+     * @param args
+     */
+    private void utCommand(String[] args) {
+        if (args.length == 1) {
+            cli.printErr("Missing <domain name>");
+            return;
+        }
+
+        if (args.length > 2) {
+            cli.printErr("Too many arguments");
+            return;
+        }
+
+        String domainName = args[1];
+        cli.print(String.format("-> /unsubscribe %s", domainName));
+        int status = stub.unsubscribeTemperatures(domainName);
+        cli.print(String.format("<- %d", status));
+        switch (status) {
+            case 0:
+                cli.printSuc("Unsubscribed from the temperatures of the domain!");
+                break;
+            case -1:
+                cli.printErr("Not subscribed to the domain!");
+                break;
+            case -2:
+                cli.printErr("The domain doesn't exist!");
+                break;
+            case -3:
+                cli.printErr("Network error!");
+                break;
+
+            default:
+                break;
+        }
+    }
+
     /**
      * Closes the handler, terminates
      * the CLI and the stub.
@@ -4,16 +4,25 @@ import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import utils.IoTMessage;
 import utils.IoTMessageType;
 import utils.IoTOpcodes;
 import utils.IoTPersistance;
+import utils.IoTReadings;
 import utils.IoTStream;
+import utils.IoTTemperatureStats;
+import utils.IoTTemperatures;
 
 public class IoTClientStub {
 
@@ -24,6 +33,16 @@ public class IoTClientStub {
     private static String hostname;
     private IoTStream iotStream;
 
+    // Pipelining, responses are matched to requests by correlation id
+    private final Object writeLock = new Object();
+    private final AtomicInteger correlationIds = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean pipelined = false;
+    private volatile boolean closed = false;
+    private Thread reader;
+    // Receives the temperature updates of subscribed domains
+    private volatile Consumer<IoTTemperatures> updateListener = null;
+
     /**
      * Private constructor, use static method getInstance() instead.
      * @param socket
@@ -45,9 +64,29 @@ public class IoTClientStub {
     protected static synchronized IoTClientStub getInstance(String serverIp, int serverPort) {
         if (instance != null)
             return instance;
+        instance = connect(serverIp, serverPort);
+        if (instance == null)
+            return null;
+
+        hostname = String.format("%s:%d", serverIp, serverPort);
+        return instance;
+    }
+
+    /**
+     * Opens a new connection to the server, independent
+     * of the instance returned by getInstance().
+     * @param serverIp
+     *          Server ip address.
+     * @param serverPort
+     *          Server port.
+     * @return
+     *          New client stub or null if error occured during 
+     *          intialization.
+     */
+    protected static IoTClientStub connect(String serverIp, int serverPort) {
         try {
             Socket socket = new Socket(serverIp, serverPort);
-            instance = new IoTClientStub(socket);
+            return new IoTClientStub(socket);
         } catch (UnknownHostException e) {
             return null;
         } catch (IOException e) {
@@ -55,9 +94,6 @@ public class IoTClientStub {
         } catch (IllegalArgumentException e) {
             return null;
         }
-
-        hostname = String.format("%s:%d", serverIp, serverPort);
-        return instance;
     }
 
     protected String getHostname() {
@@ -82,10 +118,7 @@ public class IoTClientStub {
         request.setUserId(user);
         request.setUserPwd(password);
 
-        if (!iotStream.write(request))
-            return -2;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -2;
         
@@ -114,10 +147,7 @@ public class IoTClientStub {
         request.setOpCode(IoTOpcodes.VALIDATE_DEVICE);
         request.setDevId(devId);
 
-        if (!iotStream.write(request))
-            return -2;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -2;
 
@@ -147,10 +177,7 @@ public class IoTClientStub {
         request.setProgramName(programName);
         request.setProgramSize(size);
 
-        if (!iotStream.write(request))
-            return -2;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -2;
 
@@ -177,10 +204,7 @@ public class IoTClientStub {
         IoTMessageType request = new IoTMessage();
         request.setOpCode(IoTOpcodes.EXIT);
 
-        if (!iotStream.write(request))
-            return -2;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -2;
         
@@ -207,10 +231,7 @@ public class IoTClientStub {
         request.setOpCode(IoTOpcodes.CREATE_DOMAIN);
         request.setDomainName(domainName);
 
-        if (!iotStream.write(request))
-            return -2;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -2;
 
@@ -243,10 +264,7 @@ public class IoTClientStub {
         request.setUserId(userName);
         request.setDomainName(domainName);
 
-        if (!iotStream.write(request))
-            return -4;
-        
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -4;
 
@@ -280,10 +298,7 @@ public class IoTClientStub {
         request.setOpCode(IoTOpcodes.REGISTER_DEVICE_DOMAIN);
         request.setDomainName(domainName);
 
-        if (!iotStream.write(request))
-            return -4;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -4;
 
@@ -312,10 +327,7 @@ public class IoTClientStub {
         request.setOpCode(IoTOpcodes.SEND_TEMP);
         request.setTemp(temperature);
 
-        if (!iotStream.write(request))
-            return -1;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -1;
 
@@ -326,7 +338,39 @@ public class IoTClientStub {
     }
 
     /**
-     * Sends image to the server.
+     * Sends several temperature readings to the server
+     * in a single request.
+     * @param readings
+     *      Readings in timestamp order.
+     * @return <ul>
+     *      <li> 0 if sent successfully;
+     *      <li> -1 if socket error occured;
+     *      <li> -2 if the server refused the readings;
+     */
+    protected int sendTemps(IoTReadings readings) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.SEND_TEMP_BATCH);
+        request.setReadings(readings);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -1;
+
+        switch (response.getOpcode()) {
+            case OK_ACCEPTED:
+            return 0;
+
+            case NOK_BAD_FORMAT:
+            return -2;
+
+            default:
+            return -1;
+        }
+    }
+
+    /**
+     * Sends image to the server in chunks, so the image
+     * is never loaded whole.
      * @param filename
      *      Image file name.
      * @return <ul>
@@ -336,22 +380,24 @@ public class IoTClientStub {
      */
     protected int sendImage(String filepath) {
         System.out.println("Received filepath: " + filepath);
-        byte[] img = IoTPersistance.read(filepath);
-        if (img == null)
+        File file = new File(filepath);
+        if (!file.isFile())
             return -1;
         String filename = Paths.get(filepath).getFileName().toString();
-        long filesize = new File(filepath).length();
 
-        IoTMessageType request = new IoTMessage();
-        request.setOpCode(IoTOpcodes.SEND_IMAGE);
-        request.setImageName(filename);
-        request.setImageSize(filesize);
-        request.setImage(img);
+        IoTMessageType response;
+        try (FileChannel image = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long filesize = image.size();
 
-        if (!iotStream.write(request))
-            return -2;
+            IoTMessageType request = new IoTMessage();
+            request.setOpCode(IoTOpcodes.SEND_IMAGE);
+            request.setImageName(filename);
+            request.setImageSize(filesize);
 
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+            response = exchange(request, image, null);
+        } catch (IOException e) {
+            return -1;
+        }
         if (response == null)
             return -2;
 
@@ -378,10 +424,7 @@ public class IoTClientStub {
         request.setOpCode(IoTOpcodes.GET_TEMP);
         request.setDomainName(domainName);
 
-        if (!iotStream.write(request))
-            return -3;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request);
         if (response == null)
             return -3;
 
@@ -401,13 +444,13 @@ public class IoTClientStub {
             return -3;
         }
 
-        Map<String,Float> temps = response.getTemps();
-        if (temps == null)
+        IoTTemperatures temperatures = response.getTemperatures();
+        if (temperatures == null)
             return -3;
         
         StringJoiner sj = new StringJoiner(",");
-        for (Map.Entry<String, Float> entry : temps.entrySet()) {
-            String devtemp = String.format("Device %s - Temp %f", entry.getKey(), entry.getValue());
+        for (int i = 0; i < temperatures.size(); i++) {
+            String devtemp = String.format("Device %s - Temp %f", temperatures.getDevice(i), temperatures.getValue(i));
             sj.add(devtemp);
         }
         File file = new File("domain_" + domainName + "_temps.txt");
@@ -417,7 +460,277 @@ public class IoTClientStub {
     }
 
     /**
-     * Retrieves image from a device of a user.
+     * Subscribes to the temperatures of a domain, the latest
+     * temperature of each device and then every new one are
+     * pushed by the server, updates of the same device
+     * close together may be merged. Enables pipelining, as
+     * updates arrive between responses.
+     * @param domainName
+     *      Domain name.
+     * @param listener
+     *      Receives the updates of every subscribed domain in
+     *      the thread reading the responses, replaces the
+     *      previous listener.
+     * @return <ul>
+     *      <li> 0 if subscribed successfully;
+     *      <li> -1 if the current user doesn't have permissions;
+     *      <li> -2 if the domain doesn't exist;
+     *      <li> -3 if socket or response semantic error occured;
+     */
+    protected int subscribeTemperatures(String domainName, Consumer<IoTTemperatures> listener) {
+        enablePipelining();
+        setUpdateListener(listener);
+
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.SUBSCRIBE_TEMP);
+        request.setDomainName(domainName);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -3;
+
+        switch (response.getOpcode()) {
+            case OK_ACCEPTED:
+            return 0;
+
+            case NOK_NO_PERMISSIONS:
+            return -1;
+
+            case NOK_NO_DOMAIN:
+            return -2;
+
+            default:
+            return -3;
+        }
+    }
+
+    /**
+     * Stops the temperature updates of a domain.
+     * @param domainName
+     *      Domain name.
+     * @return <ul>
+     *      <li> 0 if unsubscribed successfully;
+     *      <li> -1 if it wasn't subscribed;
+     *      <li> -2 if the domain doesn't exist;
+     *      <li> -3 if socket or response semantic error occured;
+     */
+    protected int unsubscribeTemperatures(String domainName) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.UNSUBSCRIBE_TEMP);
+        request.setDomainName(domainName);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -3;
+
+        switch (response.getOpcode()) {
+            case OK_ACCEPTED:
+            return 0;
+
+            case NOK_NO_DATA:
+            return -1;
+
+            case NOK_NO_DOMAIN:
+            return -2;
+
+            default:
+            return -3;
+        }
+    }
+
+    /**
+     * Retrieves a summary of the temperature readings of the
+     * devices of a domain within a time range and writes it
+     * to a file.
+     * @param domainName
+     *      Domain name.
+     * @param from
+     *      Start of the range in milliseconds since epoch.
+     * @param to
+     *      End of the range in milliseconds since epoch.
+     * @param buckets
+     *      Number of time buckets to split the range in,
+     *      0 for none.
+     * @return <ul>
+     *      <li> 1 if the domain has no readings in the range;
+     *      <li> 0 if received the summary successfully;
+     *      <li> -1 if the current user doesn't have permissions;
+     *      <li> -2 if the domain doesn't exist;
+     *      <li> -3 if socket or response semantic error occured;
+     */
+    protected int getTemperatureStats(String domainName, long from, long to, int buckets) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_STATS);
+        request.setDomainName(domainName);
+        request.setTimeFrom(from);
+        request.setTimeTo(to);
+        request.setCount(buckets);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -3;
+
+        switch (response.getOpcode()) {
+            case NOK_NO_PERMISSIONS:
+            return -1;
+
+            case NOK_NO_DOMAIN:
+            return -2;
+
+            case NOK_NO_DATA:
+            return 1;
+
+            case OK_ACCEPTED:
+            break;
+
+            default:
+            return -3;
+        }
+
+        IoTTemperatureStats stats = response.getTemperatureStats();
+        if (stats == null)
+            return -3;
+
+        StringJoiner sj = new StringJoiner(System.lineSeparator());
+        sj.add(String.format("count,%d", stats.getCount()));
+        sj.add(String.format("min,%f", stats.getMin()));
+        sj.add(String.format("max,%f", stats.getMax()));
+        sj.add(String.format("mean,%f", stats.getMean()));
+        for (double level : stats.getPercentileLevels()) {
+            // p50 instead of p50.0
+            String name = level == Math.rint(level) ? Long.toString((long) level) : Double.toString(level);
+            sj.add(String.format("p%s,%f", name, stats.getPercentile(level)));
+        }
+        IoTReadings means = stats.getBuckets();
+        for (int i = 0; i < means.size(); i++)
+            sj.add(String.format("%d,%f", means.getTimestamp(i), means.getValue(i)));
+        File file = new File("domain_" + domainName + "_stats.txt");
+        IoTPersistance.write(sj.toString(), file, false);
+
+        return 0;
+    }
+
+    /**
+     * Retrieves the temperature readings of a device of a
+     * user within a time range.
+     * @param userId
+     *      User id.
+     * @param devId
+     *      Device id.
+     * @param from
+     *      Start of the range in milliseconds since epoch.
+     * @param to
+     *      End of the range in milliseconds since epoch.
+     * @return <ul>
+     *      <li> 1 if the device has no readings in the range;
+     *      <li> 0 if received values successfully;
+     *      <li> -1 if the current user doesn't have permissions;
+     *      <li> -2 if the device doesn't exist;
+     *      <li> -3 if socket or response semantic error occured;
+     */
+    protected int getTemperatureHistory(String userId, int devId, long from, long to) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_RANGE);
+        request.setUserId(userId);
+        request.setDevId(devId);
+        request.setTimeFrom(from);
+        request.setTimeTo(to);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -3;
+
+        switch (response.getOpcode()) {
+            case NOK_NO_PERMISSIONS:
+            return -1;
+
+            case NOK_NO_DEVICE:
+            return -2;
+
+            case NOK_NO_DATA:
+            return 1;
+
+            case OK_ACCEPTED:
+            break;
+
+            default:
+            return -3;
+        }
+
+        return writeReadings(userId, devId, response.getReadings());
+    }
+
+    /**
+     * Retrieves the most recent temperature readings of a
+     * device of a user.
+     * @param userId
+     *      User id.
+     * @param devId
+     *      Device id.
+     * @param count
+     *      Maximum number of readings.
+     * @return <ul>
+     *      <li> 1 if the device has no readings;
+     *      <li> 0 if received values successfully;
+     *      <li> -1 if the current user doesn't have permissions;
+     *      <li> -2 if the device doesn't exist;
+     *      <li> -3 if socket or response semantic error occured;
+     */
+    protected int getRecentTemperatures(String userId, int devId, int count) {
+        IoTMessageType request = new IoTMessage();
+        request.setOpCode(IoTOpcodes.GET_TEMP_RECENT);
+        request.setUserId(userId);
+        request.setDevId(devId);
+        request.setCount(count);
+
+        IoTMessageType response = exchange(request);
+        if (response == null)
+            return -3;
+
+        switch (response.getOpcode()) {
+            case NOK_NO_PERMISSIONS:
+            return -1;
+
+            case NOK_NO_DEVICE:
+            return -2;
+
+            case NOK_NO_DATA:
+            return 1;
+
+            case OK_ACCEPTED:
+            break;
+
+            default:
+            return -3;
+        }
+
+        return writeReadings(userId, devId, response.getReadings());
+    }
+
+    /**
+     * Writes received readings to a file in the working
+     * directory, one "timestamp,temperature" per line.
+     * @return
+     *      0 if written, -3 if there are no readings.
+     */
+    private int writeReadings(String userId, int devId, IoTReadings readings) {
+        if (readings == null)
+            return -3;
+
+        StringJoiner sj = new StringJoiner(System.lineSeparator());
+        for (int i = 0; i < readings.size(); i++) {
+            sj.add(String.format("%d,%f", readings.getTimestamp(i), readings.getValue(i)));
+        }
+        File file = new File(String.format("device_%s_%d_temps.txt", userId, devId));
+        IoTPersistance.write(sj.toString(), file, false);
+
+        return 0;
+    }
+
+    /**
+     * Retrieves image from a device of a user, the image
+     * bytes follow the response and are written to the
+     * file as they arrive.
      * @param userId
      *      User id.
      * @param devId
@@ -436,10 +749,7 @@ public class IoTClientStub {
         request.setUserId(userId);
         request.setDevId(devId);
 
-        if (!iotStream.write(request))
-            return -4;
-
-        IoTMessageType response = (IoTMessageType) iotStream.read();
+        IoTMessageType response = exchange(request, null, this::receiveImage);
         if (response == null)
             return -4;
 
@@ -458,28 +768,40 @@ public class IoTClientStub {
             return 1;
             
             case OK_ACCEPTED:
-            break;
+            return 0;
             
             default:
             return -4;
         }
-        
+    }
+
+    /**
+     * Writes the image that follows a successful
+     * GET_USER_IMAGE response to a file named after it.
+     * @param response
+     *      Response to GET_USER_IMAGE.
+     * @return
+     *      False if the image couldn't be received.
+     */
+    protected boolean receiveImage(IoTMessageType response) {
+        if (response.getOpcode() != IoTOpcodes.OK_ACCEPTED)
+            return true;
+
         long imagesize = response.getImageSize();
         if (imagesize <= 0)
-            return -4;
-        byte[] imagedata = response.getImage();
-        if (imagedata == null)
-            return -4;
+            return false;
         String imagename = response.getImageName();
         if (imagename == null)
-            return -4;
-
-        // Choose the smallest value to truncate the byte array
-        byte[] image = Arrays.copyOf(imagedata, Math.min(Math.toIntExact(imagesize), imagedata.length));
-
-        IoTPersistance.write(image, new File(imagename), false);
+            return false;
 
-        return 0;
+        // Only the name, the server doesn't choose where to write
+        File file = new File(Paths.get(imagename).getFileName().toString());
+        try (FileChannel image = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return iotStream.readFile(image, imagesize);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -488,7 +810,187 @@ public class IoTClientStub {
      */
     protected int close() {
         int status = terminateProgram();
-        iotStream.close();
+        disconnect();
         return status;
     }
+
+    /**
+     * Closes the connection without telling the server.
+     */
+    protected void disconnect() {
+        iotStream.close();
+    }
+
+    /**
+     * Allows several requests to be outstanding. Responses
+     * are read by a background thread and matched to their
+     * requests by correlation id, so they may arrive in any
+     * order. Must be enabled before the requests that
+     * should be pipelined.
+     */
+    protected synchronized void enablePipelining() {
+        if (this.reader != null)
+            return;
+
+        this.pipelined = true;
+        this.reader = new Thread(this::readResponses, "iot-client-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Sets who receives the temperature updates pushed by the
+     * server, read by the pipelining thread.
+     * @param listener
+     *      Receives the updates of every subscribed domain,
+     *      or null to ignore them.
+     */
+    protected void setUpdateListener(Consumer<IoTTemperatures> listener) {
+        this.updateListener = listener;
+    }
+
+    /**
+     * Sends a request without waiting for it's response,
+     * pipelining must be enabled. Requests that change the
+     * session, such as the authentication, are answered
+     * only after the ones sent before them.
+     * @param request
+     *      Request to be sent.
+     * @return
+     *      Future completed with the response, or with null
+     *      if a socket error occured.
+     */
+    protected CompletableFuture<IoTMessageType> submit(IoTMessageType request) {
+        return submit(request, null, null);
+    }
+
+    /**
+     * Sends a request without waiting for it's response,
+     * pipelining must be enabled.
+     * @param request
+     *      Request to be sent.
+     * @param upload
+     *      File sent in chunks after the request, or null.
+     *      It's fully written when this method returns.
+     * @param attachment
+     *      Reads the bytes that follow the response, returns
+     *      false if it failed, or null if there's none.
+     * @return
+     *      Future completed with the response, or with null
+     *      if a socket error occured.
+     */
+    protected CompletableFuture<IoTMessageType> submit(IoTMessageType request, FileChannel upload, Predicate<IoTMessageType> attachment) {
+        // Zero means no correlation id
+        int id = this.correlationIds.updateAndGet(last -> last == Integer.MAX_VALUE ? 1 : last + 1);
+        request.setCorrelationId(id);
+
+        Pending pending = new Pending(attachment);
+        this.pending.put(id, pending);
+        if (this.closed || !send(request, upload)) {
+            this.pending.remove(id);
+            pending.future.complete(null);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Sends a request and waits for it's response.
+     * @param request
+     *      Request to be sent.
+     * @return
+     *      Response or null if a socket error occured.
+     */
+    private IoTMessageType exchange(IoTMessageType request) {
+        return exchange(request, null, null);
+    }
+
+    /**
+     * Sends a request and waits for it's response.
+     * @param request
+     *      Request to be sent.
+     * @param upload
+     *      File sent in chunks after the request, or null.
+     * @param attachment
+     *      Reads the bytes that follow the response, returns
+     *      false if it failed, or null if there's none.
+     * @return
+     *      Response or null if a socket error occured.
+     */
+    private IoTMessageType exchange(IoTMessageType request, FileChannel upload, Predicate<IoTMessageType> attachment) {
+        if (this.pipelined)
+            return submit(request, upload, attachment).join();
+
+        if (!send(request, upload))
+            return null;
+
+        IoTMessageType response = (IoTMessageType) iotStream.read();
+        if (response != null && attachment != null && !attachment.test(response))
+            return null;
+        return response;
+    }
+
+    /**
+     * Writes a request and it's chunks, if any, without
+     * letting other requests in between.
+     */
+    private boolean send(IoTMessageType request, FileChannel upload) {
+        synchronized (this.writeLock) {
+            if (!iotStream.write(request))
+                return false;
+            return upload == null ||
+                iotStream.writeChunks(upload, request.getImageSize(), request.getCorrelationId());
+        }
+    }
+
+    /**
+     * Reads responses and completes their requests until
+     * the connection ends, runs in the reader thread.
+     */
+    private void readResponses() {
+        while (true) {
+            IoTMessageType response = (IoTMessageType) iotStream.read();
+            if (response == null)
+                break;
+
+            // Pushed by the server, not a response
+            if (response.getOpcode() == IoTOpcodes.TEMP_UPDATE) {
+                Consumer<IoTTemperatures> listener = this.updateListener;
+                if (listener != null && response.getTemperatures() != null)
+                    listener.accept(response.getTemperatures());
+                continue;
+            }
+
+            Pending pending = this.pending.remove(response.getCorrelationId());
+            if (pending == null)
+                continue;
+
+            // Bytes after the response must be read before the next one
+            if (pending.attachment != null && !pending.attachment.test(response)) {
+                pending.future.complete(null);
+                break;
+            }
+            pending.future.complete(response);
+        }
+
+        // Fails the requests still waiting
+        this.closed = true;
+        for (Integer id : this.pending.keySet()) {
+            Pending pending = this.pending.remove(id);
+            if (pending != null)
+                pending.future.complete(null);
+        }
+    }
+
+    /**
+     * Request waiting for it's response.
+     */
+    private static class Pending {
+        private final CompletableFuture<IoTMessageType> future;
+        private final Predicate<IoTMessageType> attachment;
+
+        private Pending(Predicate<IoTMessageType> attachment) {
+            this.future = new CompletableFuture<>();
+            this.attachment = attachment;
+        }
+    }
 }
\ No newline at end of file
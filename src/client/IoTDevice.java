@@ -75,7 +75,7 @@ public class IoTDevice {
      *      -1 if number of arguments is wrong;
      *      -2 if socket ip doesn't match IPv4 format;
      *      -3 if socket port isn't a valid value, i.e., [0, 65535].
-     *      -4 if dev-id is not a number;
+     *      -4 if dev-id is not a number or is negative;
      *      -5 if user-id doesn't meet the expected format;
      */
     private static int verifyCmdArgs(String[] args) {
@@ -102,7 +102,8 @@ public class IoTDevice {
         
         // Verify <dev-id>
         try {
-            Integer.parseInt(args[1]);
+            if (Integer.parseInt(args[1]) < 0)
+                return -4;
         } catch (NumberFormatException e) {
             return -4;
         }
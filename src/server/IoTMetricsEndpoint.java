@@ -0,0 +1,59 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import utils.IoTMetrics;
+
+/**
+ * Local HTTP endpoint serving the server metrics as text
+ * on GET /metrics. Bound to the loopback address only, the
+ * metrics aren't meant to leave the machine.
+ */
+public class IoTMetricsEndpoint {
+    private static final String PATH = "/metrics";
+
+    private final HttpServer server;
+
+    /**
+     * Starts serving the metrics in it's own thread.
+     * @param port
+     *      Local port.
+     * @throws IOException
+     *      If the port can't be bound.
+     */
+    public IoTMetricsEndpoint(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(PATH, this::handle);
+        this.server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = IoTMetrics.getInstance().report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void close() {
+        this.server.stop(0);
+    }
+}
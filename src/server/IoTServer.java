@@ -1,21 +1,45 @@
 package server;
 
-import java.net.ServerSocket;
-import java.util.LinkedList;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import utils.IoTCLI;
+import utils.IoTLogger;
+import utils.IoTMetrics;
+import utils.IoTTimeSeries;
 
 public class IoTServer{
-    private static final String USAGE = "USAGE: IoTServer <port> (optional)";
+    private static final String USAGE = "USAGE: IoTServer <port> (optional) --nio|--virtual (optional) --debug (optional) --metrics=<port> (optional)";
     private static final int DEFAULT_SERVER_SOCKET = 12345;
+    private static final String NIO_FLAG = "--nio";
+    private static final String VIRTUAL_FLAG = "--virtual";
+    // Logs every request
+    private static final String DEBUG_FLAG = "--debug";
+    // Serves the metrics on a local port, --metrics=<port>
+    private static final String METRICS_FLAG = "--metrics=";
 
     private static IoTCLI cli;
+    private static IoTLogger logger;
 
     // Store running threads
-    private static List<IoTServerThread> threads;
+    private static Set<Thread> threads;
+    // Creates the thread of each connection
+    private static ThreadFactory threadFactory;
+    // Runs the pipelined requests of every connection
+    private static ExecutorService pipelineExecutor;
     private static Thread main;
-    private static ServerSocket socket;
+    private static ServerSocketChannel socket;
+    // Non-blocking mode, null when running a thread per connection
+    private static IoTServerEventLoop eventLoop;
+    // Null when the metrics aren't served over HTTP
+    private static IoTMetricsEndpoint metricsEndpoint;
+    // Null until it's loaded, e.g. if the snapshot is corrupted
+    private static IoTServerDatabase database;
     public static void main(String[] args) {
         // Command line argument validation
         if (verifyCmdArgs(args) < 0) {
@@ -30,11 +54,24 @@ public class IoTServer{
             return;
         }
 
+        if (eventLoop != null) {
+            cli.printLog("Running in non-blocking mode.");
+            eventLoop.run();
+            return;
+        }
+
         try {
             while (true) {
-                System.out.println("Waiting for new connection...");
-                IoTServerThread thread = new IoTServerThread(socket.accept());
-                System.out.println("New connection!");
+                logger.debug(null, null, "Waiting for new connection...");
+                IoTServerThread connection = new IoTServerThread(socket.accept().socket(), pipelineExecutor);
+                logger.info("New connection!");
+                Thread thread = threadFactory.newThread(() -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        threads.remove(Thread.currentThread());
+                    }
+                });
                 threads.add(thread);
                 thread.start();
             }
@@ -49,23 +86,61 @@ public class IoTServer{
 
     /**
      * Verifies if the command line arguments complies with
-     * the format <port> (optional).
+     * the format <port> (optional) --nio|--virtual (optional) --debug (optional)
+     * --metrics=<port> (optional).
      * @param args
      *      Command line arguments.
      * @return
      *      0 if all the inputs are correct;
      *      -1 if listening port isn't a valid value, i.e., [0, 65535].
+     *      -2 if an argument isn't recognized or more than one
+     *         mode was given.
      */
     private static int verifyCmdArgs(String[] args) {
-        if (args.length <= 0)
-            return 0;
-        
-        try {
-            int port = Integer.parseInt(args[0]);
-            if (port < 0 || port > 65535)
+        boolean hasPort = false;
+        boolean hasMode = false;
+        boolean hasDebug = false;
+        boolean hasMetrics = false;
+        for (String arg : args) {
+            if (arg.startsWith(METRICS_FLAG)) {
+                if (hasMetrics)
+                    return -2;
+                hasMetrics = true;
+                try {
+                    int port = Integer.parseInt(arg.substring(METRICS_FLAG.length()));
+                    if (port < 0 || port > 65535)
+                        return -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+                continue;
+            }
+
+            if (arg.equals(DEBUG_FLAG)) {
+                if (hasDebug)
+                    return -2;
+                hasDebug = true;
+                continue;
+            }
+
+            if (arg.equals(NIO_FLAG) || arg.equals(VIRTUAL_FLAG)) {
+                if (hasMode)
+                    return -2;
+                hasMode = true;
+                continue;
+            }
+
+            if (hasPort)
+                return -2;
+
+            try {
+                int port = Integer.parseInt(arg);
+                if (port < 0 || port > 65535)
+                    return -1;
+            } catch (NumberFormatException e) {
                 return -1;
-        } catch (NumberFormatException e) {
-            return -1;
+            }
+            hasPort = true;
         }
 
         return 0;
@@ -84,19 +159,66 @@ public class IoTServer{
             // Initialize cli
             cli = IoTCLI.getInstance();
             cli.printLog("Starting server...");
+            logger = IoTLogger.getInstance();
 
             // Associates shutdown signal with it's handler
             main = Thread.currentThread();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> { shutdown(); }));
-            threads = new LinkedList<IoTServerThread>();
-
-            if (args.length <= 0)
-                socket = new ServerSocket(DEFAULT_SERVER_SOCKET);
-            else 
-                // Creates server socket
-                socket = new ServerSocket(
-                    Integer.parseInt(args[0])
+            threads = ConcurrentHashMap.newKeySet();
+            threadFactory = Thread::new;
+
+            int port = DEFAULT_SERVER_SOCKET;
+            int metricsPort = -1;
+            boolean nio = false;
+            boolean virtual = false;
+            for (String arg : args) {
+                if (arg.startsWith(METRICS_FLAG))
+                    metricsPort = Integer.parseInt(arg.substring(METRICS_FLAG.length()));
+                else if (arg.equals(NIO_FLAG))
+                    nio = true;
+                else if (arg.equals(DEBUG_FLAG))
+                    logger.setLevel(IoTLogger.Level.DEBUG);
+                else if (arg.equals(VIRTUAL_FLAG))
+                    virtual = true;
+                else
+                    port = Integer.parseInt(arg);
+            }
+
+            // Loaded before accepting connections, so a bad snapshot stops the server
+            database = IoTServerDatabase.getInstance();
+
+            if (virtual) {
+                // Blocking connection loops that don't hold a platform thread while waiting
+                threadFactory = virtualThreadFactory("iot-session-");
+                if (threadFactory == null) {
+                    cli.printErr("Virtual threads need Java 21 or newer.");
+                    return -1;
+                }
+                pipelineExecutor = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, virtualThreadFactory("iot-pipeline-"));
+            } else {
+                pipelineExecutor = Executors.newCachedThreadPool();
+            }
+
+            // Creates server socket
+            socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(port));
+
+            if (nio)
+                eventLoop = new IoTServerEventLoop(
+                    socket, Runtime.getRuntime().availableProcessors()
                 );
+
+            // Always readable through JMX, over HTTP if asked
+            IoTMetrics metrics = IoTMetrics.getInstance();
+            metrics.registerGauge("log_dropped_total", logger::getDropped);
+            if (!metrics.registerMBean())
+                logger.warn("Failed to register the metrics MBean");
+            if (metricsPort >= 0) {
+                metricsEndpoint = new IoTMetricsEndpoint(metricsPort);
+                cli.printLog(String.format("Serving metrics on http://localhost:%d/metrics", metricsPort));
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return -1;
@@ -104,21 +226,55 @@ public class IoTServer{
         return 0;
     }
 
+    /**
+     * Creates virtual threads, found at runtime so the server
+     * still builds and runs on older Java without --virtual.
+     * @param prefix
+     *      Name of the threads, followed by a counter.
+     * @return
+     *      Factory of virtual threads, or null if the Java
+     *      version doesn't have them.
+     */
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, prefix, 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     /**
      * Closes all threads and exit.
      */
     private static void shutdown() {
-        for (IoTServerThread ioTServerThread : threads) {
-            ioTServerThread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
         }
 
+        if (eventLoop != null)
+            eventLoop.close();
+        if (pipelineExecutor != null)
+            pipelineExecutor.shutdownNow();
+        if (metricsEndpoint != null)
+            metricsEndpoint.close();
+
+        // Syncs readings not yet on disk
+        IoTTimeSeries.getInstance().close();
+        if (database != null)
+            database.close();
+
         try {
             socket.close();
         } catch (Exception e1){
 
         }
         main.interrupt();
-        
+
+        // Prints what's left in the log buffer
+        logger.close();
         System.out.println("Went to mewing, byebye!");
     }
 }
\ No newline at end of file
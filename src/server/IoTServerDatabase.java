@@ -1,23 +1,26 @@
 package server;
 
+import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.stream.Collectors;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import server.model.Device;
 import server.model.Domain;
 import server.model.User;
 import utils.IoTFileManager;
-import utils.IoTIParsable;
+import utils.IoTJournal;
 import utils.IoTOpcodes;
+import utils.IoTSnapshot;
 
 /**
  * Represents a database that stores user, domain and devices
- * information.
+ * information. Shared by every connection, lookups don't lock
+ * and insertions are atomic.
  */
 public class IoTServerDatabase {
     
@@ -28,6 +31,10 @@ public class IoTServerDatabase {
     private Map<String, User> users;
     private Map<String, Device> devices;
 
+    // Reverse indexes, domains each user and device belongs to
+    private Map<User, Set<Domain>> userDomains;
+    private Map<Device, Set<Domain>> deviceDomains;
+
     // TODO
     private String client_program_name;
     private long client_program_size;
@@ -38,22 +45,67 @@ public class IoTServerDatabase {
     private static final String USER_TXT_DB = Paths.get(ROOT.toString(), "users.txt").toString();
     private static final String DOMAINS_TXT_DB = Paths.get(ROOT.toString(), "domains.txt").toString();
     private static final String DEVICES_TXT_DB = Paths.get(ROOT.toString(), "devices.txt").toString();
+    private static final String JOURNAL_TXT_DB = Paths.get(ROOT.toString(), "journal.txt").toString();
+    private static final String SNAPSHOT_DB = Paths.get(ROOT.toString(), "snapshot.bin").toString();
+
+    // Payload templates of the journal membership records
+    private static final String DOMAIN_USER_TEMP = "{Domain=%s,User=%s}";
+    private static final String DOMAIN_DEVICE_TEMP = "{Domain=%s,Device=%s}";
+
+    // The journal is compacted once it has this many mutations
+    // and more mutations than objects in the snapshots, which
+    // keeps the cost of compacting constant per mutation
+    private static final int MIN_COMPACT_SIZE = 1024;
+
+    private final IoTJournal journal;
     
     private IoTServerDatabase() {
-        this.domains = new HashMap<>();
-        this.users = new HashMap<>();
-        this.devices = new HashMap<>();
+        this.domains = new ConcurrentHashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.devices = new ConcurrentHashMap<>();
+        this.userDomains = new ConcurrentHashMap<>();
+        this.deviceDomains = new ConcurrentHashMap<>();
+        this.journal = new IoTJournal(JOURNAL_TXT_DB);
         
         load();
     }
     
     /*
     * Load persisted database files, if any
+    * @throws IllegalStateException
+    *       If the snapshot exists but can't be read.
     */
     private void load() {
-        IoTFileManager.loadUsersFromText(this.users);
-        IoTFileManager.loadDevicesFromText(this.users, this.devices);
-        IoTFileManager.loadDomainsFromText(this.users, this.devices, this.domains);
+        int loaded = IoTSnapshot.load(SNAPSHOT_DB, this.users, this.devices, this.domains);
+        if (loaded != 0 && loaded != -1)
+            // Compacting would replace it with an empty database
+            throw new IllegalStateException(String.format(
+                "Snapshot %s can't be read (%d), move it aside to start with an empty database",
+                SNAPSHOT_DB, loaded));
+
+        // The text files are only read to migrate older servers
+        boolean migrate = loaded == -1;
+        if (migrate) {
+            IoTFileManager.loadUsersFromText(this.users);
+            IoTFileManager.loadDevicesFromText(this.users, this.devices);
+            IoTFileManager.loadDomainsFromText(this.users, this.devices, this.domains);
+            migrate = !this.users.isEmpty();
+        }
+
+        // Mutations after the last compaction
+        if (IoTFileManager.loadFromJournal(this.journal, this.users, this.devices, this.domains) > 0 || migrate)
+            compact();
+
+        // Rebuilds the reverse indexes
+        for (Domain domain : this.domains.values()) {
+            for (User user : domain.getNamespace())
+                indexUser(user, domain);
+            for (Device device : domain.getDevices())
+                indexDevice(device, domain);
+        }
+
+        // Rebuilds the in memory latest readings
+        this.devices.values().parallelStream().forEach(Device::loadTemperature);
 
         Optional<String> progname = IoTFileManager.loadProgramNameFromText();
         client_program_name = progname.isPresent() ? progname.get() : null;
@@ -74,11 +126,20 @@ public class IoTServerDatabase {
     }
 
     /**
-     * Adds a new user to the database.
+     * Adds a new user to the database and persists it.
      * @param user
+     * @return
+     *      True if added, false if a user with the
+     *      same name already exists.
      */
-    public void addUser(User user) {
-        this.users.put(user.getName(), user);
+    public Boolean addUser(User user) {
+        // Journaled before another session can add it to a domain
+        synchronized (this.journal) {
+            if (this.users.putIfAbsent(user.getName(), user) != null)
+                return false;
+            onUserUpdate(user);
+        }
+        return true;
     }
 
     /**
@@ -87,7 +148,8 @@ public class IoTServerDatabase {
      * @return
      */
     public Boolean containsUser(String userName) {
-        return this.users.containsKey(userName);
+        // Concurrent maps don't take null keys
+        return userName != null && this.users.containsKey(userName);
     }
 
     /**
@@ -98,23 +160,32 @@ public class IoTServerDatabase {
      *      User or Null if user isn't in the database.
      */
     public User getUser(String userName) {
-        return this.users.get(userName);
+        return userName == null ? null : this.users.get(userName);
     }
 
     /**
-     * Adds a new device to the database.
+     * Adds a new device to the database and persists it.
      * @param device
+     * @return
+     *      True if added, false if a device with the
+     *      same name already exists.
      */
-    public void addDevice(Device device) {
-        this.devices.put(device.getName(), device);
+    public Boolean addDevice(Device device) {
+        // Journaled before it can be registered in a domain
+        synchronized (this.journal) {
+            if (this.devices.putIfAbsent(device.getName(), device) != null)
+                return false;
+            onDeviceUpdate(device);
+        }
+        return true;
     }
 
     public Boolean containsDevice(String deviceName) {
-        return this.devices.containsKey(deviceName);
+        return deviceName != null && this.devices.containsKey(deviceName);
     }
 
     public Device getDevice(String deviceName) {
-        return this.devices.get(deviceName);
+        return deviceName == null ? null : this.devices.get(deviceName);
     }
 
     public String getClientProgramName() {
@@ -126,29 +197,43 @@ public class IoTServerDatabase {
     }
 
     public Boolean containsDomain(String domainName) {
-        return this.domains.containsKey(domainName);
+        return domainName != null && this.domains.containsKey(domainName);
     }
 
-    public void addDomain(Domain domain) {
-        this.domains.put(domain.getName(), domain);
+    /**
+     * Adds a new domain to the database and persists it.
+     * @param domain
+     * @return
+     *      True if added, false if a domain with the
+     *      same name already exists.
+     */
+    public Boolean addDomain(Domain domain) {
+        // Journaled before it's members, which aren't replayed without it
+        synchronized (this.journal) {
+            if (this.domains.putIfAbsent(domain.getName(), domain) != null)
+                return false;
+            onDomainUpdate(domain);
+        }
+
+        indexUser(domain.getOwner(), domain);
+        return true;
     }
 
     public Domain getDomain(String domainName) {
-        return this.domains.get(domainName);
+        return domainName == null ? null : this.domains.get(domainName);
     }
 
 
     public IoTOpcodes createDomain(User as, String domainName) {
-        if (this.domains.containsKey(domainName))
+        if (!addDomain(new Domain(domainName, as)))
             return IoTOpcodes.NOK_ALREADY_EXISTS;
 
-        this.domains.put(domainName, new Domain(domainName, as));
         return IoTOpcodes.OK_ACCEPTED;
     }
 
     /**
      * @deprecated
-     *      Use {@link Device#writeTemperature(String)} instead
+     *      Use {@link Device#writeTemperature(long, float)} instead
      * @param device
      * @param temperature
      * @return
@@ -174,10 +259,10 @@ public class IoTServerDatabase {
 
 
     public IoTOpcodes addUserToDomain(User as, String userName, String domainName) {
-        if (!this.domains.containsKey(domainName))
+        if (!containsDomain(domainName))
             return IoTOpcodes.NOK_NO_DOMAIN;
 
-        if (!this.users.containsKey(userName))
+        if (!containsUser(userName))
             return IoTOpcodes.NOK_NO_USER;
 
         Domain domain = this.domains.get(domainName);
@@ -185,61 +270,153 @@ public class IoTServerDatabase {
             return IoTOpcodes.NOK_NO_PERMISSIONS;
         
         User user = this.users.get(userName);
-        if (domain.contains(user))
+        if (!domain.addUser(user))
             return IoTOpcodes.NOK_ALREADY_EXISTS;
 
-        domain.addUser(user);
+        indexUser(user, domain);
         return IoTOpcodes.OK_ACCEPTED;
     }
 
+    /**
+     * Checks if a user and a device share a domain.
+     * @param as
+     * @param device
+     * @return
+     */
     public Boolean canUserReceiveDataFromDevice(User as, Device device) {
-        for (Domain domain : this.domains.values())
-            if (domain.contains(device) && domain.contains(as))
+        if (as == null || device == null)
+            return false;
+
+        Set<Domain> ofUser = this.userDomains.get(as);
+        Set<Domain> ofDevice = this.deviceDomains.get(device);
+        if (ofUser == null || ofDevice == null)
+            return false;
+
+        // Iterates the smaller set
+        if (ofUser.size() > ofDevice.size()) {
+            Set<Domain> swap = ofUser;
+            ofUser = ofDevice;
+            ofDevice = swap;
+        }
+        for (Domain domain : ofUser)
+            if (ofDevice.contains(domain))
                 return true;
 
         return false;
     }
 
+    /**
+     * Get the domains a device is registered in.
+     * @param device
+     * @return
+     *      Live view of the domains, empty if there is none.
+     */
+    public Set<Domain> getDomains(Device device) {
+        Set<Domain> domains = device == null ? null : this.deviceDomains.get(device);
+        return domains == null ? Collections.emptySet() : Collections.unmodifiableSet(domains);
+    }
+
     public IoTOpcodes registerDeviceToDomain(User as, Device device, String domainName) {
-        if (!this.domains.containsKey(domainName))
+        if (!containsDomain(domainName))
             return IoTOpcodes.NOK_NO_DOMAIN;
 
         Domain domain = this.domains.get(domainName);
         if (!domain.contains(as))
             return IoTOpcodes.NOK_NO_PERMISSIONS;
         
-        if (domain.contains(device))
+        if (!domain.registerDevice(device))
             return IoTOpcodes.NOK_ALREADY_EXISTS;
 
-        domain.registerDevice(device);
+        indexDevice(device, domain);
         return IoTOpcodes.OK_ACCEPTED;
     }
 
-    public void onUserUpdate() {
-        List<IoTIParsable> objs = this.users.values()
-            .stream()
-            .map(user -> (IoTIParsable) user)
-            .collect(Collectors.toList());
+    /**
+     * Persists a new user.
+     * @param user
+     */
+    public void onUserUpdate(User user) {
+        this.journal.append(IoTJournal.USER, user.parseToSerial());
+        compactIfNeeded();
+    }
+
+    /**
+     * Persists a new domain.
+     * @param domain
+     */
+    public void onDomainUpdate(Domain domain) {
+        this.journal.append(IoTJournal.DOMAIN, domain.parseToSerial());
+        compactIfNeeded();
+    }
+
+    /**
+     * Persists the addition of a user to a domain.
+     * @param domain
+     * @param user
+     */
+    public void onDomainUpdate(Domain domain, User user) {
+        this.journal.append(IoTJournal.DOMAIN_USER,
+            String.format(DOMAIN_USER_TEMP, domain.getName(), user.getName()));
+        compactIfNeeded();
+    }
+
+    /**
+     * Persists the registration of a device in a domain.
+     * @param domain
+     * @param device
+     */
+    public void onDomainUpdate(Domain domain, Device device) {
+        this.journal.append(IoTJournal.DOMAIN_DEVICE,
+            String.format(DOMAIN_DEVICE_TEMP, domain.getName(), device.getName()));
+        compactIfNeeded();
+    }
+
+    /**
+     * Persists a new device or the change of it's image.
+     * @param device
+     */
+    public void onDeviceUpdate(Device device) {
+        this.journal.append(IoTJournal.DEVICE, device.parseToSerial());
+        compactIfNeeded();
+    }
 
-        IoTFileManager.writeObjsToText(USER_TXT_DB, objs);
+    private void indexUser(User user, Domain domain) {
+        this.userDomains.computeIfAbsent(user, key -> ConcurrentHashMap.newKeySet()).add(domain);
     }
 
-    public void onDomainUpdate() {
-        List<IoTIParsable> objs = this.domains.values()
-            .stream()
-            .map(domain -> (IoTIParsable) domain)
-            .collect(Collectors.toList());
+    private void indexDevice(Device device, Domain domain) {
+        this.deviceDomains.computeIfAbsent(device, key -> ConcurrentHashMap.newKeySet()).add(domain);
+    }
 
-        IoTFileManager.writeObjsToText(DOMAINS_TXT_DB, objs);
+    private void compactIfNeeded() {
+        int size = this.journal.size();
+        if (size >= MIN_COMPACT_SIZE && size > this.users.size() + this.devices.size() + this.domains.size())
+            compact();
     }
 
-    public void onDeviceUpdate() {
-        List<IoTIParsable> objs = this.devices.values()
-            .stream()
-            .map(device -> (IoTIParsable) device)
-            .collect(Collectors.toList());
-        
-        IoTFileManager.writeObjsToText(DEVICES_TXT_DB, objs);
+    /**
+     * Writes all the objects to the snapshot and empties
+     * the journal.
+     */
+    private void compact() {
+        this.journal.compact(() -> {
+            if (IoTSnapshot.write(SNAPSHOT_DB, this.users.values(), this.devices.values(), this.domains.values()) != 0)
+                return false;
+
+            // Replaced by the snapshot, they would only be stale
+            for (String text : new String[]{USER_TXT_DB, DEVICES_TXT_DB, DOMAINS_TXT_DB})
+                new File(text).delete();
+            return true;
+        });
+    }
+
+    /**
+     * Compacts the journal and closes it, used when the
+     * server shuts down.
+     */
+    public void close() {
+        compact();
+        this.journal.close();
     }
     
 }
@@ -0,0 +1,490 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import server.model.Session;
+import utils.ConsoleColors;
+import utils.IoTLogger;
+import utils.IoTMessage;
+import utils.IoTMessageCodec;
+import utils.IoTMessageType;
+import utils.IoTMetrics;
+import utils.IoTOpcodes;
+
+/**
+ * Non-blocking alternative to {@link IoTServerThread}.
+ * A single selector thread accepts connections and
+ * reads frames, complete requests are handed to a small
+ * pool of workers that run the request handler, so the
+ * number of connections is bounded by file descriptors
+ * instead of threads. Files attached to responses are
+ * transferred from the file to the socket as it drains.
+ * Temperature updates of subscribed domains are only
+ * taken when everything queued for the connection was
+ * written, the rest keep coalescing meanwhile.
+ */
+public class IoTServerEventLoop implements Runnable {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    // Connections with a finished request, waiting for the selector
+    private final Queue<Connection> completed;
+    // Connections with temperature updates to push
+    private final Queue<Connection> pushes;
+    private final IoTLogger logger;
+    private final IoTMetrics metrics;
+    private volatile boolean running;
+
+    public IoTServerEventLoop(ServerSocketChannel serverChannel, int workerCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.completed = new ConcurrentLinkedQueue<>();
+        this.pushes = new ConcurrentLinkedQueue<>();
+        this.logger = IoTLogger.getInstance();
+        this.metrics = IoTMetrics.getInstance();
+
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Waits for socket events until the loop is closed.
+     */
+    @Override
+    public void run() {
+        this.running = true;
+        try {
+            while (this.running && !Thread.currentThread().isInterrupted()) {
+                this.selector.select();
+                processCompleted();
+                processPushes();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept();
+                    else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable())
+                            read(connection);
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                            // Requests wait for attachments to be streamed
+                            if (key.isValid())
+                                dispatch(connection);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (this.running)
+                e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops the loop, closes every connection and
+     * the worker pool.
+     */
+    public void close() {
+        this.running = false;
+        this.workers.shutdownNow();
+        try {
+            if (this.selector.isOpen()) {
+                for (SelectionKey key : this.selector.keys())
+                    key.channel().close();
+                this.selector.close();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.session.enablePush(() -> {
+            this.pushes.add(connection);
+            this.selector.wakeup();
+        });
+        this.metrics.sessionOpened();
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        logger.info("New connection from %s", channel.getRemoteAddress());
+
+        // Offers the protocol, the client's offer arrives as the first byte
+        ByteBuffer offer = ByteBuffer.allocate(1);
+        offer.put(IoTMessageCodec.PROTOCOL_PREFERRED).flip();
+        connection.writeQueue.add(offer);
+        flush(connection);
+    }
+
+    /**
+     * Reads available bytes into the connection buffer
+     * and dispatches a request if a frame is complete.
+     */
+    private void read(Connection connection) {
+        try {
+            connection.ensureCapacity(IoTMessageCodec.HEADER_SIZE);
+            int read = connection.channel.read(connection.readBuffer);
+            if (read < 0) {
+                disconnect(connection);
+                return;
+            }
+            this.metrics.addBytesIn(read);
+        } catch (IOException e) {
+            disconnect(connection);
+            return;
+        }
+        dispatch(connection);
+    }
+
+    /**
+     * Hands the next buffered request of the connection to
+     * a worker. Only one request per connection is processed
+     * at a time, so requests are answered in order.
+     */
+    private void dispatch(Connection connection) {
+        if (connection.busy || connection.attachment != null)
+            return;
+
+        ByteBuffer buffer = connection.readBuffer;
+        if (connection.protocol < 0) {
+            if (buffer.position() < 1)
+                return;
+            connection.protocol = IoTMessageCodec.negotiate(buffer.get(0));
+            buffer.flip();
+            buffer.position(1);
+            buffer.compact();
+        }
+
+        if (buffer.position() < IoTMessageCodec.HEADER_SIZE)
+            return;
+
+        int length = buffer.getInt(0);
+        if (length <= 0 || length > IoTMessageCodec.MAX_FRAME_SIZE) {
+            disconnect(connection);
+            return;
+        }
+
+        int frameSize = IoTMessageCodec.HEADER_SIZE + length;
+        if (buffer.position() < frameSize) {
+            connection.ensureCapacity(frameSize - buffer.position());
+            return;
+        }
+
+        IoTMessageType message = (IoTMessageType) IoTMessageCodec.decode(
+            buffer.array(), IoTMessageCodec.HEADER_SIZE, length, connection.protocol);
+
+        // Discard the frame, keeping what comes after it
+        buffer.flip();
+        buffer.position(frameSize);
+        buffer.compact();
+
+        if (message == null) {
+            disconnect(connection);
+            return;
+        }
+
+        connection.busy = true;
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        this.metrics.requestQueued();
+        try {
+            this.workers.execute(() -> {
+                this.metrics.requestDequeued();
+                process(connection, message);
+            });
+        } catch (RejectedExecutionException e) {
+            this.metrics.requestDequeued();
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Runs the request handler in a worker thread and
+     * queues the response.
+     */
+    private void process(Connection connection, IoTMessageType message) {
+        IoTServerRequestHandler handler = IoTServerRequestHandler.getInstance();
+        IoTServerDatabase dbContext = IoTServerDatabase.getInstance();
+        Session session = connection.session;
+
+        try {
+            if (logger.isDebugEnabled())
+                logger.debug(session.toString(), connection.color, "Received message %s!", message);
+            IoTMessageType response;
+            try {
+                response = handler.process(message, session, dbContext);
+            } catch (RuntimeException e) {
+                logger.error("Failed to process %s of %s: %s", message.getOpcode(), session.toString(), e);
+                response = new IoTMessage();
+                response.setOpCode(IoTOpcodes.NOK);
+                response.setCorrelationId(message.getCorrelationId());
+            }
+            if (logger.isDebugEnabled())
+                logger.debug(session.toString(), connection.color, "Processed message and response will be %s", response);
+
+            if (response != null) {
+                ByteBuffer frame = encode(response, connection.protocol);
+                if (frame != null) {
+                    connection.pending = frame;
+                    connection.pendingAttachment = response.getAttachment();
+                    connection.pendingAttachmentSize = response.getImageSize();
+                } else {
+                    closeAttachment(response.getAttachment());
+                }
+            }
+        } finally {
+            // Otherwise the connection would never read again nor close
+            this.completed.add(connection);
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Moves the responses produced by the workers to the
+     * write queues and resumes reading those connections.
+     * Must run in the selector thread.
+     */
+    private void processCompleted() {
+        Connection connection;
+        while ((connection = this.completed.poll()) != null) {
+            FileChannel attachment = connection.pendingAttachment;
+            connection.pendingAttachment = null;
+
+            if (!connection.key.isValid()) {
+                closeAttachment(attachment);
+                connection.session.close();
+                continue;
+            }
+
+            if (connection.pending != null) {
+                connection.writeQueue.add(connection.pending);
+                connection.pending = null;
+            }
+            connection.busy = false;
+            if (attachment != null) {
+                // Streamed by flush, reading resumes once it's sent
+                connection.attachment = attachment;
+                connection.attachmentPosition = 0;
+                connection.attachmentRemaining = connection.pendingAttachmentSize;
+            } else {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+
+            flush(connection);
+            if (connection.key.isValid())
+                dispatch(connection);
+        }
+    }
+
+    /**
+     * Pushes the updates of the connections that were woken.
+     * Must run in the selector thread.
+     */
+    private void processPushes() {
+        // Only the ones already queued, flush queues them again
+        for (int n = this.pushes.size(); n > 0; n--) {
+            Connection connection = this.pushes.poll();
+            if (connection == null)
+                break;
+            connection.pushing = true;
+            push(connection);
+        }
+    }
+
+    /**
+     * Queues the pending updates of the connection if
+     * nothing else is waiting to be written, otherwise
+     * flush comes back once it's written.
+     */
+    private void push(Connection connection) {
+        if (!connection.key.isValid() || !connection.writeQueue.isEmpty() || connection.attachment != null)
+            return;
+
+        IoTMessageType update = connection.session.getSubscriber().drain();
+        if (update == null) {
+            // Woken again by the next update
+            connection.pushing = false;
+            return;
+        }
+
+        ByteBuffer frame = encode(update, connection.protocol);
+        if (frame != null)
+            connection.writeQueue.add(frame);
+        flush(connection);
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket
+     * accepts, waiting for writability for the rest.
+     */
+    private void flush(Connection connection) {
+        try {
+            while (!connection.writeQueue.isEmpty()) {
+                ByteBuffer frame = connection.writeQueue.peek();
+                this.metrics.addBytesOut(connection.channel.write(frame));
+                if (frame.hasRemaining())
+                    break;
+                connection.writeQueue.poll();
+            }
+            if (connection.writeQueue.isEmpty())
+                transfer(connection);
+        } catch (IOException e) {
+            disconnect(connection);
+            return;
+        }
+
+        int ops = connection.key.interestOps();
+        if (connection.writeQueue.isEmpty() && connection.attachment == null) {
+            connection.key.interestOps(ops & ~SelectionKey.OP_WRITE);
+            // Updates that arrived while the socket was busy
+            if (connection.pushing) {
+                this.pushes.add(connection);
+                this.selector.wakeup();
+            }
+        } else {
+            connection.key.interestOps(ops | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Transfers as much of the connection's attachment as
+     * the socket accepts, straight from the file. Once it's
+     * all sent the attachment is closed and the connection
+     * reads requests again.
+     */
+    private void transfer(Connection connection) throws IOException {
+        if (connection.attachment == null)
+            return;
+
+        while (connection.attachmentRemaining > 0) {
+            long sent = connection.attachment.transferTo(
+                connection.attachmentPosition, connection.attachmentRemaining, connection.channel);
+            if (sent == 0) {
+                if (connection.attachmentPosition >= connection.attachment.size())
+                    throw new IOException("File is shorter than announced");
+                // Socket is full
+                return;
+            }
+            connection.attachmentPosition += sent;
+            connection.attachmentRemaining -= sent;
+            this.metrics.addBytesOut(sent);
+        }
+
+        closeAttachment(connection.attachment);
+        connection.attachment = null;
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private static ByteBuffer encode(IoTMessageType message, byte protocol) {
+        byte[] payload = IoTMessageCodec.encode(message, protocol);
+        if (payload == null)
+            return null;
+
+        ByteBuffer frame = ByteBuffer.allocate(IoTMessageCodec.HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    private static void closeAttachment(FileChannel attachment) {
+        if (attachment == null)
+            return;
+        try {
+            attachment.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        closeAttachment(connection.attachment);
+        connection.attachment = null;
+        connection.key.cancel();
+        if (connection.channel.isOpen())
+            this.metrics.sessionClosed();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+        }
+        if (!connection.busy)
+            connection.session.close();
+    }
+
+    /**
+     * State of a single client connection.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Session session;
+        private final Queue<ByteBuffer> writeQueue;
+        private final String color;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        // Payload format, negative until the client's offer arrives
+        private byte protocol = -1;
+        // Response produced by a worker, not yet queued
+        private volatile ByteBuffer pending;
+        // Attachment of the pending response
+        private volatile FileChannel pendingAttachment;
+        private volatile long pendingAttachmentSize;
+        // Whether a worker is processing a request
+        private volatile boolean busy;
+        // Woken by updates and not fully drained yet, selector thread only
+        private boolean pushing;
+        // File being sent, where it goes and how much is left
+        private FileChannel attachment;
+        private long attachmentPosition;
+        private long attachmentRemaining;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.session = new Session();
+            this.writeQueue = new ArrayDeque<>();
+            this.color = ConsoleColors.Service.getInstance().getRandomUnusedColor("Regular");
+            this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+
+        /**
+         * Grows the read buffer so it can receive at least
+         * the given number of bytes.
+         */
+        private void ensureCapacity(int needed) {
+            if (this.readBuffer.remaining() >= needed)
+                return;
+
+            int capacity = Math.max(this.readBuffer.capacity() * 2, this.readBuffer.position() + needed);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            this.readBuffer.flip();
+            grown.put(this.readBuffer);
+            this.readBuffer = grown;
+        }
+    }
+}
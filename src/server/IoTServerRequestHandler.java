@@ -2,16 +2,25 @@ package server;
 
 import server.model.Device;
 import server.model.Domain;
+import server.model.ImageUpload;
 import server.model.Session;
 import server.model.User;
 import utils.IoTAuth;
+import utils.IoTLogger;
 import utils.IoTMessage;
 import utils.IoTMessageType;
+import utils.IoTMetrics;
 import utils.IoTOpcodes;
-
-import java.util.Arrays;
+import utils.IoTReadings;
+import utils.IoTTemperatureStats;
+import utils.IoTTemperatures;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.io.IOException;
 import java.util.EnumMap;
-import java.util.Map;
 import java.util.Optional;
 
 public class IoTServerRequestHandler {
@@ -38,9 +47,14 @@ public class IoTServerRequestHandler {
         IoTMessageHandlerFunction function = functions.get(opcode);
 
         if (function != null) {
-            return function.apply(message, session, dbContext);
+            long start = System.nanoTime();
+            IoTMessageType response = function.apply(message, session, dbContext);
+            IoTMetrics.getInstance().recordRequest(opcode, System.nanoTime() - start);
+            if (response != null)
+                response.setCorrelationId(message.getCorrelationId());
+            return response;
         } else {
-            System.out.println("No handler found for opcode: " + opcode);
+            IoTLogger.getInstance().warn("No handler found for opcode: %s", opcode);
             return null;
         }
     }
@@ -53,14 +67,23 @@ public class IoTServerRequestHandler {
         functions.put(IoTOpcodes.VALIDATE_USER, this::handleValidateUser);
         functions.put(IoTOpcodes.VALIDATE_DEVICE, this::handleValidateDevice);
         functions.put(IoTOpcodes.VALIDATE_PROGRAM, this::handleValidateProgram);
+        functions.put(IoTOpcodes.ATTACH_DEVICE, this::handleAttachDevice);
+        functions.put(IoTOpcodes.DETACH_DEVICE, this::handleDetachDevice);
         functions.put(IoTOpcodes.CREATE_DOMAIN, this::handleCreateDomain);
         functions.put(IoTOpcodes.EXIT, this::handleTerminateProgram);
         functions.put(IoTOpcodes.ADD_USER_DOMAIN, this::handleAddToDomain);
         functions.put(IoTOpcodes.REGISTER_DEVICE_DOMAIN, this::handleRegisterCurrentDeviceToDomain);
         functions.put(IoTOpcodes.SEND_TEMP, this::handleSendTemperature);
+        functions.put(IoTOpcodes.SEND_TEMP_BATCH, this::handleSendTemperatureBatch);
         functions.put(IoTOpcodes.SEND_IMAGE, this::handleSendImage);
+        functions.put(IoTOpcodes.IMAGE_CHUNK, this::handleImageChunk);
         functions.put(IoTOpcodes.GET_TEMP, this::handleReceiveTemperature);
         functions.put(IoTOpcodes.GET_USER_IMAGE, this::handleReceiveImage);
+        functions.put(IoTOpcodes.GET_TEMP_RANGE, this::handleReceiveTemperatureRange);
+        functions.put(IoTOpcodes.GET_TEMP_RECENT, this::handleReceiveRecentTemperatures);
+        functions.put(IoTOpcodes.GET_TEMP_STATS, this::handleReceiveTemperatureStats);
+        functions.put(IoTOpcodes.SUBSCRIBE_TEMP, this::handleSubscribeTemperatures);
+        functions.put(IoTOpcodes.UNSUBSCRIBE_TEMP, this::handleUnsubscribeTemperatures);
     }
 
     /**
@@ -90,24 +113,32 @@ public class IoTServerRequestHandler {
             return response;
         }
 
-        if (dbContext.containsUser(userName)) { // user exists
-            User user = dbContext.getUser(userName);
-            if (password.equals(user.getPassword())) {
+        if (userName == null || password == null) {
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+            return response;
+        }
+
+        User user = dbContext.getUser(userName);
+        if (user == null) { // new user
+            User newUser = new User(userName, password);
+            if (dbContext.addUser(newUser)) {
                 session.setAuthState(IoTAuth.USER);
-                session.setUser(user);
-                response.setOpCode(IoTOpcodes.OK_USER);
-            } 
-            else {
-                response.setOpCode(IoTOpcodes.WRONG_PWD);
+                session.setUser(newUser);
+                response.setOpCode(IoTOpcodes.OK_NEW_USER);
+                return response;
             }
-                
-        } else { // new user
-            User user = new User(userName, password);
-            dbContext.addUser(user);
+            // Created meanwhile by another session
+            user = dbContext.getUser(userName);
+        }
+
+        // user exists
+        if (password.equals(user.getPassword())) {
             session.setAuthState(IoTAuth.USER);
             session.setUser(user);
-            response.setOpCode(IoTOpcodes.OK_NEW_USER);
-            dbContext.onUserUpdate();
+            response.setOpCode(IoTOpcodes.OK_USER);
+        } 
+        else {
+            response.setOpCode(IoTOpcodes.WRONG_PWD);
         }
         return response;
     }
@@ -116,8 +147,6 @@ public class IoTServerRequestHandler {
         User user = session.getUser();
         int devId = message.getDevId();
 
-        String iotDeviceId = String.format("%s:%d", user.getName(), message.getDevId());
-
         IoTMessageType response = new IoTMessage();
 
         // If the user hasn't finished the previous authentication
@@ -134,31 +163,93 @@ public class IoTServerRequestHandler {
             return response;
         }
 
-        if (!dbContext.containsDevice(iotDeviceId)) { // new device!
-            Device device = new Device(user, devId);
-            device.setActive();
-            dbContext.addDevice(device);
+        Optional<Device> device = activateDevice(user, devId, dbContext);
+        if (device.isPresent()) {
             session.setAuthState(IoTAuth.USER_DEVICE);
-            session.setDevice(device);
+            session.setDevice(device.get());
             response.setOpCode(IoTOpcodes.OK_DEVID);
-            dbContext.onDeviceUpdate();
         } else {
-            Device device = dbContext.getDevice(iotDeviceId);
-            if (!device.isActive()) {
-                device.setActive();
-                session.setAuthState(IoTAuth.USER_DEVICE);
-                session.setDevice(device);
-                response.setOpCode(IoTOpcodes.OK_DEVID);
-            }
-            else {
-                response.setOpCode(IoTOpcodes.NOK_DEVID);
-            }
-            
+            response.setOpCode(IoTOpcodes.NOK_DEVID);
         }
 
         return response;
     }
 
+    /**
+     * Turns on a device of the user, creating it if
+     * it doesn't exist.
+     * @return
+     *      The device or nothing if it's already in use
+     *      by another session or the id is invalid.
+     */
+    private Optional<Device> activateDevice(User user, int devId, IoTServerDatabase dbContext) {
+        // Includes the id requests use for the device of the session
+        if (devId < 0)
+            return Optional.empty();
+
+        Device newDevice = new Device(user, devId);
+        newDevice.setActive();
+        if (dbContext.addDevice(newDevice)) // new device!
+            return Optional.of(newDevice);
+
+        Device device = dbContext.getDevice(newDevice.getName());
+        if (device.tryActivate())
+            return Optional.of(device);
+        return Optional.empty();
+    }
+
+    /**
+     * Attaches another device of the user to the session,
+     * so a gateway authenticates once for all it's devices.
+     * Requests with the id of an attached device act on
+     * it instead of the device of the session.
+     */
+    private IoTMessageType handleAttachDevice(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        User user = session.getUser();
+        int devId = message.getDevId();
+
+        IoTMessageType response = new IoTMessage();
+        if (session.getAuthState().equals(IoTAuth.NONE) || user == null) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
+        // Already attached, or the device of the session
+        if (devId != Session.OWN_DEVICE && session.getDevice(devId) != null) {
+            response.setOpCode(IoTOpcodes.OK_DEVID);
+            return response;
+        }
+
+        Optional<Device> device = activateDevice(user, devId, dbContext);
+        if (device.isPresent()) {
+            session.attachDevice(device.get());
+            response.setOpCode(IoTOpcodes.OK_DEVID);
+        } else {
+            response.setOpCode(IoTOpcodes.NOK_DEVID);
+        }
+        return response;
+    }
+
+    private IoTMessageType handleDetachDevice(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        IoTMessageType response = new IoTMessage();
+        if (session.detachDevice(message.getDevId()))
+            response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+        else
+            response.setOpCode(IoTOpcodes.NOK_NO_DEVICE);
+        return response;
+    }
+
+    /**
+     * Gets the device a request acts on and answers
+     * NOK_NO_DEVICE if it isn't in the session.
+     */
+    private static Optional<Device> sessionDevice(IoTMessageType message, Session session, IoTMessageType response) {
+        Device device = session.getDevice(message.getDevId());
+        if (device == null)
+            response.setOpCode(IoTOpcodes.NOK_NO_DEVICE);
+        return Optional.ofNullable(device);
+    }
+
     private IoTMessageType handleValidateProgram(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
         String programname = message.getProgramName();
         long programsize = message.getProgramSize();
@@ -186,6 +277,16 @@ public class IoTServerRequestHandler {
 
         IoTMessageType response = new IoTMessage();
 
+        if (domainName == null) {
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+            return response;
+        }
+
+        if (session.getUser() == null) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
         if (dbContext.containsDomain(domainName)) {
             response.setOpCode(IoTOpcodes.NOK_ALREADY_EXISTS);
             return response;
@@ -193,9 +294,11 @@ public class IoTServerRequestHandler {
 
         // new domain!
         Domain domain = new Domain(domainName, session.getUser());
-        dbContext.addDomain(domain);
+        if (!dbContext.addDomain(domain)) {
+            response.setOpCode(IoTOpcodes.NOK_ALREADY_EXISTS);
+            return response;
+        }
         response.setOpCode(IoTOpcodes.OK_ACCEPTED);
-        dbContext.onDomainUpdate();
 
         return response;
     }
@@ -209,7 +312,7 @@ public class IoTServerRequestHandler {
         IoTOpcodes code = dbContext.addUserToDomain(user, userName, domainName);
         response.setOpCode(code);
         if (code == IoTOpcodes.OK_ACCEPTED)
-            dbContext.onDomainUpdate();
+            dbContext.onDomainUpdate(dbContext.getDomain(domainName), dbContext.getUser(userName));
 
         return response;
     }
@@ -219,44 +322,162 @@ public class IoTServerRequestHandler {
         User user = session.getUser();
 
         IoTMessageType response = new IoTMessage();
-        IoTOpcodes code = dbContext.registerDeviceToDomain(user, session.getDevice(), domainName);
+        Optional<Device> device = sessionDevice(message, session, response);
+        if (!device.isPresent())
+            return response;
+
+        IoTOpcodes code = dbContext.registerDeviceToDomain(user, device.get(), domainName);
         response.setOpCode(code);
         if (code == IoTOpcodes.OK_ACCEPTED)
-            dbContext.onDomainUpdate();
+            dbContext.onDomainUpdate(dbContext.getDomain(domainName), device.get());
         return response;
     }
 
     private IoTMessageType handleSendTemperature(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
-        String temperature = String.valueOf(message.getTemp());
-        Device device = session.getDevice();
+        float temperature = message.getTemp();
 
         IoTMessageType response = new IoTMessage();
-        device.writeTemperature(temperature);
-        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+        Optional<Device> device = sessionDevice(message, session, response);
+        if (!device.isPresent())
+            return response;
+
+        if (device.get().writeTemperature(System.currentTimeMillis(), temperature)) {
+            IoTSubscriptions.getInstance().publish(device.get(), dbContext.getDomains(device.get()));
+            response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+        } else {
+            response.setOpCode(IoTOpcodes.NOK);
+        }
 
         return response;
     }
 
+    /**
+     * Stores readings buffered by the device, all of them
+     * with a single append to the device's log.
+     */
+    private IoTMessageType handleSendTemperatureBatch(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        IoTReadings readings = message.getReadings();
+
+        IoTMessageType response = new IoTMessage();
+        Optional<Device> device = sessionDevice(message, session, response);
+        if (!device.isPresent())
+            return response;
+
+        if (readings == null || readings.isEmpty()) {
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+            return response;
+        }
+
+        // Readings from the future would be older than the following ones
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < readings.size(); i++) {
+            if (readings.getTimestamp(i) > now) {
+                response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+                return response;
+            }
+        }
+
+        int written = device.get().writeTemperatures(readings);
+        if (written == 0) {
+            // Subscribers only see the latest one
+            IoTSubscriptions.getInstance().publish(device.get(), dbContext.getDomains(device.get()));
+            response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+        } else if (written == -2) {
+            // Older than the stored readings, they're never rewritten
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+        } else {
+            response.setOpCode(IoTOpcodes.NOK);
+        }
+
+        return response;
+    }
+
+    /**
+     * Starts receiving an image. Without the image in the
+     * message, the image follows as IMAGE_CHUNK messages and
+     * the answer is only sent after the last one.
+     */
     private IoTMessageType handleSendImage(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
-        Device device = session.getDevice();
-        
+        IoTMessageType response = new IoTMessage();
+        Optional<Device> device = sessionDevice(message, session, response);
+        if (!device.isPresent())
+            return response;
+
         byte[] image = message.getImage();
         long imgsize = message.getImageSize();
-        String imgname = message.getImageName();
-        // TODO: verify argument validity
+        String imgname = toFileName(message.getImageName());
 
         // Choose the smallest size to create a new image
-        byte[] imagebytes = Arrays.copyOf(image, Math.min(Math.toIntExact(imgsize), image.length));
-        device.writeImage(imgname, imagebytes);
+        if (image != null)
+            imgsize = Math.min(imgsize, image.length);
 
-        IoTMessageType response = new IoTMessage();
-        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
-        dbContext.onDeviceUpdate();
-        dbContext.onDomainUpdate();
+        Optional<ImageUpload> upload = ImageUpload.begin(device.get(), imgname, imgsize);
+        if (!upload.isPresent()) {
+            response.setOpCode(IoTOpcodes.NOK);
+            return response;
+        }
+
+        if (image == null) {
+            session.setUpload(upload.get());
+            return null;
+        }
 
+        // Whole image in the message
+        upload.get().write(image, 0, Math.toIntExact(imgsize));
+        return finishUpload(upload.get(), session, dbContext);
+    }
+
+    /**
+     * Writes a chunk of the image being received, answers
+     * once the image is complete.
+     */
+    private IoTMessageType handleImageChunk(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        ImageUpload upload = session.getUpload();
+        // Chunks of a refused image
+        if (upload == null)
+            return null;
+
+        upload.write(message.getImage());
+        if (!upload.isComplete())
+            return null;
+
+        return finishUpload(upload, session, dbContext);
+    }
+
+    private IoTMessageType finishUpload(ImageUpload upload, Session session, IoTServerDatabase dbContext) {
+        IoTMessageType response = new IoTMessage();
+        if (upload.commit()) {
+            response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+            dbContext.onDeviceUpdate(upload.getDevice());
+        } else {
+            response.setOpCode(IoTOpcodes.NOK);
+        }
+        session.setUpload(null);
         return response;
     }
 
+    /**
+     * Keeps only the name of a file sent by a client, so
+     * it can't be written outside the device's directory.
+     * @return
+     *      File name or null if it's invalid.
+     */
+    private static String toFileName(String name) {
+        if (name == null)
+            return null;
+        try {
+            Path fileName = Paths.get(name).getFileName();
+            if (fileName == null)
+                return null;
+            String result = fileName.toString();
+            if (result.isEmpty() || result.equals(".") || result.equals(".."))
+                return null;
+            return result;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
     private IoTMessageType handleReceiveTemperature(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
         String domainName = message.getDomainName();
         User user = session.getUser();
@@ -273,13 +494,13 @@ public class IoTServerRequestHandler {
             return response;
         }
 
-        Map<String,Float> temps = domain.extractTemperatures();
-        if (temps.size() == 0) {
+        IoTTemperatures temperatures = domain.extractTemperatures();
+        if (temperatures.isEmpty()) {
             response.setOpCode(IoTOpcodes.NOK_NO_DATA);
             return response;
         }
 
-        response.setTemps(temps);
+        response.setTemperatures(temperatures);
 
         response.setOpCode(IoTOpcodes.OK_ACCEPTED);
 
@@ -302,16 +523,195 @@ public class IoTServerRequestHandler {
             return response;
         }
 
-        Optional<byte[]> image = device.readImage();
+        Optional<FileChannel> image = device.openImage();
         if (!image.isPresent()) {
             response.setOpCode(IoTOpcodes.NOK_NO_DATA);
             return response;
         }
-        long filesize = image.get().length;
+
+        // The image is sent from the file after the response
+        long filesize;
+        try {
+            filesize = image.get().size();
+        } catch (IOException e) {
+            try {
+                image.get().close();
+            } catch (IOException ignored) {
+            }
+            response.setOpCode(IoTOpcodes.NOK_NO_DATA);
+            return response;
+        }
 
         response.setImageName(device.getImgFileName().get());
         response.setImageSize(filesize);
-        response.setImage(image.get());
+        response.setAttachment(image.get());
+
+        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+
+        return response;
+    }
+
+    /**
+     * Returns the temperature readings of a device within
+     * a time range, the requesting user must share a domain
+     * with the device, like when receiving images.
+     */
+    private IoTMessageType handleReceiveTemperatureRange(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        String deviceId = String.format("%s:%s", message.getUserId(), message.getDevId());
+        User requestingUser = session.getUser();
+
+        IoTMessageType response = new IoTMessage();
+        if (!dbContext.containsDevice(deviceId)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DEVICE);
+            return response;
+        }
+
+        Device device = dbContext.getDevice(deviceId);
+        if (!dbContext.canUserReceiveDataFromDevice(requestingUser, device)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
+        IoTReadings readings = device.readTemperatures(message.getTimeFrom(), message.getTimeTo());
+        if (readings.isEmpty()) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DATA);
+            return response;
+        }
+
+        response.setReadings(readings);
+        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+
+        return response;
+    }
+
+    /**
+     * Returns the most recent temperature readings of a
+     * device, with the same permissions as a time range.
+     */
+    private IoTMessageType handleReceiveRecentTemperatures(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        String deviceId = String.format("%s:%s", message.getUserId(), message.getDevId());
+        User requestingUser = session.getUser();
+
+        IoTMessageType response = new IoTMessage();
+        if (message.getCount() <= 0) {
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+            return response;
+        }
+
+        if (!dbContext.containsDevice(deviceId)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DEVICE);
+            return response;
+        }
+
+        Device device = dbContext.getDevice(deviceId);
+        if (!dbContext.canUserReceiveDataFromDevice(requestingUser, device)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
+        IoTReadings readings = device.readRecentTemperatures(message.getCount());
+        if (readings.isEmpty()) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DATA);
+            return response;
+        }
+
+        response.setReadings(readings);
+        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+
+        return response;
+    }
+
+    /**
+     * Returns a summary of the temperature readings of the
+     * devices of a domain within a time range, split in
+     * as many time buckets as the count asks for. Like the
+     * latest temperatures, only users of the domain can
+     * request it.
+     */
+    private IoTMessageType handleReceiveTemperatureStats(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        String domainName = message.getDomainName();
+        User user = session.getUser();
+
+        IoTMessageType response = new IoTMessage();
+        if (message.getCount() < 0 || message.getCount() > IoTTemperatureStats.MAX_BUCKETS) {
+            response.setOpCode(IoTOpcodes.NOK_BAD_FORMAT);
+            return response;
+        }
+
+        if (!dbContext.containsDomain(domainName)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DOMAIN);
+            return response;
+        }
+
+        Domain domain = dbContext.getDomain(domainName);
+        if (!domain.contains(user)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
+        IoTTemperatureStats stats = domain.summarizeTemperatures(message.getTimeFrom(), message.getTimeTo(), message.getCount());
+        if (stats == null) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DATA);
+            return response;
+        }
+
+        response.setTemperatureStats(stats);
+        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+
+        return response;
+    }
+
+    /**
+     * Subscribes the session to the temperatures of a domain,
+     * they're pushed as TEMP_UPDATE messages, starting with
+     * the latest temperature of each device. Like the latest
+     * temperatures, only users of the domain can subscribe.
+     */
+    private IoTMessageType handleSubscribeTemperatures(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        String domainName = message.getDomainName();
+        User user = session.getUser();
+
+        IoTMessageType response = new IoTMessage();
+        if (session.getSubscriber() == null) {
+            response.setOpCode(IoTOpcodes.NOK);
+            return response;
+        }
+
+        if (!dbContext.containsDomain(domainName)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DOMAIN);
+            return response;
+        }
+
+        Domain domain = dbContext.getDomain(domainName);
+        if (!domain.contains(user)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_PERMISSIONS);
+            return response;
+        }
+
+        session.subscribe(domain);
+        response.setOpCode(IoTOpcodes.OK_ACCEPTED);
+
+        return response;
+    }
+
+    /**
+     * Stops the temperature updates of a domain, updates
+     * already waiting to be pushed are still sent.
+     */
+    private IoTMessageType handleUnsubscribeTemperatures(IoTMessageType message, Session session, IoTServerDatabase dbContext) {
+        String domainName = message.getDomainName();
+
+        IoTMessageType response = new IoTMessage();
+        if (!dbContext.containsDomain(domainName)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DOMAIN);
+            return response;
+        }
+
+        Domain domain = dbContext.getDomain(domainName);
+        if (!session.unsubscribe(domain)) {
+            response.setOpCode(IoTOpcodes.NOK_NO_DATA);
+            return response;
+        }
 
         response.setOpCode(IoTOpcodes.OK_ACCEPTED);
 
@@ -1,23 +1,73 @@
 package server;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 import server.model.Session;
 import utils.ConsoleColors;
-import utils.IoTCLI;
+import utils.IoTLogger;
+import utils.IoTMessage;
 import utils.IoTMessageType;
+import utils.IoTMetrics;
+import utils.IoTOpcodes;
 import utils.IoTStream;
 
-public class IoTServerThread extends Thread {
+/**
+ * Connection loop of a single client, the server decides
+ * whether it runs on a platform or a virtual thread.
+ * Requests with a correlation id that don't change the
+ * session run concurrently in the executor and are
+ * answered as they finish, any other request waits for
+ * them and runs alone. Temperature updates of subscribed
+ * domains are written by a task of the executor between
+ * the responses.
+ */
+public class IoTServerThread implements Runnable {
+    // Requests that can run concurrently with others of the same client,
+    // domain changes aren't, e.g. ADD_USER_DOMAIN must follow it's CREATE_DOMAIN
+    private static final Set<IoTOpcodes> PIPELINED = EnumSet.of(
+        IoTOpcodes.SEND_TEMP,
+        IoTOpcodes.SEND_TEMP_BATCH,
+        IoTOpcodes.GET_TEMP,
+        IoTOpcodes.GET_TEMP_RANGE,
+        IoTOpcodes.GET_TEMP_RECENT,
+        IoTOpcodes.GET_TEMP_STATS,
+        IoTOpcodes.SUBSCRIBE_TEMP,
+        IoTOpcodes.UNSUBSCRIBE_TEMP
+    );
+    // Pipelined requests of a client running at the same time
+    private static final int MAX_IN_FLIGHT = 32;
+
     private Boolean running = false;
+    private Socket socket;
     private IoTStream ioTStream;
-    private IoTCLI cli;
+    private IoTLogger logger;
     private String color;
+    private final Executor executor;
+    private final Semaphore inFlight;
+    // Not a monitor, a virtual thread blocked on it would pin it's carrier
+    private final ReentrantLock writeLock;
 
-    public IoTServerThread(Socket socket) {
-        this.ioTStream = new IoTStream(socket);
+    /**
+     * @param socket
+     *      Client socket.
+     * @param executor
+     *      Runs the pipelined requests.
+     */
+    public IoTServerThread(Socket socket, Executor executor) {
+        this.socket = socket;
+        this.executor = executor;
+        this.inFlight = new Semaphore(MAX_IN_FLIGHT);
+        this.writeLock = new ReentrantLock();
         this.running = true;
-        this.cli = IoTCLI.getInstance();
+        this.logger = IoTLogger.getInstance();
         this.color = ConsoleColors.Service.getInstance().getRandomUnusedColor("Regular");
     }
 
@@ -26,29 +76,144 @@ public class IoTServerThread extends Thread {
      */
     @Override
     public void run() {
+        // Negotiates the protocol in this thread, not in the accepting one
+        this.ioTStream = new IoTStream(this.socket);
         IoTServerRequestHandler handler = IoTServerRequestHandler.getInstance();
         IoTServerDatabase dbContext = IoTServerDatabase.getInstance();
         Session session = new Session();        
+        session.enablePush(() -> schedulePush(session));
+        IoTMetrics metrics = IoTMetrics.getInstance();
+        metrics.sessionOpened();
+        try {
+            serve(handler, dbContext, session);
+        } finally {
+            // Waits for the pipelined requests before closing
+            this.inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            // Also discards an unfinished image
+            session.close();
+            metrics.sessionClosed();
+        }
+    }
+
+    private void serve(IoTServerRequestHandler handler, IoTServerDatabase dbContext, Session session) {
         while (this.running && this.ioTStream.ready() && !Thread.currentThread().isInterrupted()) {
 
             IoTMessageType receivedMessage = (IoTMessageType) this.ioTStream.read();
             if (receivedMessage == null)
                 return;
-            cli.print(
-                String.format("Received message %s!", receivedMessage), session.toString(), color
-            );
-            
-            // response
-            IoTMessageType responseMessage = handler.process(receivedMessage, session, dbContext);
-            cli.print(
-                String.format("Processed message and response will be %s", responseMessage), session.toString(), color
-            );
-
-            if (responseMessage != null) {
-                cli.print("Sending!", session.toString(), color);
-                if (this.ioTStream.write(responseMessage))
-                    cli.print("Sent!", session.toString(), color);
+            if (logger.isDebugEnabled())
+                logger.debug(session.toString(), color, "Received message %s!", receivedMessage);
+
+            if (receivedMessage.getCorrelationId() != 0 && PIPELINED.contains(receivedMessage.getOpcode())) {
+                this.inFlight.acquireUninterruptibly();
+                IoTMetrics.getInstance().requestQueued();
+                try {
+                    this.executor.execute(() -> {
+                        IoTMetrics.getInstance().requestDequeued();
+                        try {
+                            respond(handler, dbContext, session, receivedMessage);
+                        } finally {
+                            this.inFlight.release();
+                        }
+                    });
+                    continue;
+                } catch (RejectedExecutionException e) {
+                    IoTMetrics.getInstance().requestDequeued();
+                    this.inFlight.release();
+                }
+            }
+
+            // Waits for the pipelined requests, this one may change the session
+            this.inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            try {
+                respond(handler, dbContext, session, receivedMessage);
+            } finally {
+                this.inFlight.release(MAX_IN_FLIGHT);
             }
         }
-    }    
+    }
+
+    /**
+     * Processes a request and sends it's response.
+     */
+    private void respond(IoTServerRequestHandler handler, IoTServerDatabase dbContext, Session session, IoTMessageType receivedMessage) {
+        // response
+        IoTMessageType responseMessage;
+        try {
+            responseMessage = handler.process(receivedMessage, session, dbContext);
+        } catch (RuntimeException e) {
+            // The client still waits for the correlation id
+            logger.error("Failed to process %s of %s: %s", receivedMessage.getOpcode(), session.toString(), e);
+            responseMessage = new IoTMessage();
+            responseMessage.setOpCode(IoTOpcodes.NOK);
+            responseMessage.setCorrelationId(receivedMessage.getCorrelationId());
+        }
+        if (logger.isDebugEnabled())
+            logger.debug(session.toString(), color, "Processed message and response will be %s", responseMessage);
+
+        if (responseMessage != null) {
+            // Responses of pipelined requests are written by several threads
+            this.writeLock.lock();
+            try {
+                boolean sent = this.ioTStream.write(responseMessage);
+                if (!sent)
+                    logger.warn("Failed to send %s to %s", responseMessage.getOpcode(), session.toString());
+                sendAttachment(responseMessage, sent);
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts writing the pending updates of the session,
+     * called by the thread of the first update.
+     */
+    private void schedulePush(Session session) {
+        try {
+            this.executor.execute(() -> push(session));
+        } catch (RejectedExecutionException e) {
+            // Server shutting down
+        }
+    }
+
+    /**
+     * Writes the updates of the session until there are no
+     * more, those arriving while it writes are coalesced
+     * and sent in the next update.
+     */
+    private void push(Session session) {
+        IoTMessageType update;
+        while ((update = session.getSubscriber().drain()) != null) {
+            this.writeLock.lock();
+            try {
+                if (!this.ioTStream.write(update)) {
+                    logger.warn("Failed to send %s to %s", update.getOpcode(), session.toString());
+                    return;
+                }
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Streams the file attached to a response, if any,
+     * and closes it.
+     * @param response
+     *      Response that was sent.
+     * @param sent
+     *      Whether the response was sent.
+     */
+    private void sendAttachment(IoTMessageType response, boolean sent) {
+        FileChannel attachment = response.getAttachment();
+        if (attachment == null)
+            return;
+
+        try (attachment) {
+            if (sent)
+                this.ioTStream.writeFile(attachment, response.getImageSize());
+        } catch (IOException e) {
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+package server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.model.Device;
+import server.model.Domain;
+import server.model.Subscriber;
+
+/**
+ * Sessions subscribed to the temperatures of each domain.
+ * Temperatures received from a device are offered to the
+ * subscribers of every domain the device is registered in,
+ * looked up by domain so sending a temperature costs the
+ * same however many domains have subscribers.
+ */
+public class IoTSubscriptions {
+
+    // Singleton
+    private static IoTSubscriptions instance = null;
+
+    private final Map<Domain, Set<Subscriber>> subscribers;
+
+    private IoTSubscriptions() {
+        this.subscribers = new ConcurrentHashMap<>();
+    }
+
+    public static synchronized IoTSubscriptions getInstance() {
+        if (instance == null)
+            instance = new IoTSubscriptions();
+        return instance;
+    }
+
+    /**
+     * Subscribes to the temperatures of a domain, the latest
+     * temperature of each of it's devices is the first
+     * update.
+     * @param domain
+     *      Domain.
+     * @param subscriber
+     *      Updates of the session.
+     */
+    public void subscribe(Domain domain, Subscriber subscriber) {
+        // Atomic with the removal of empty sets
+        this.subscribers.compute(domain, (key, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(subscriber);
+            return set;
+        });
+
+        // Held so the first update has every device
+        synchronized (subscriber) {
+            for (Device device : domain.getDevices()) {
+                if (device.readTemperature().isPresent())
+                    subscriber.offer(device);
+            }
+        }
+    }
+
+    /**
+     * Stops the updates of a domain.
+     * @param domain
+     *      Domain.
+     * @param subscriber
+     *      Updates of the session.
+     * @return
+     *      True if it was subscribed, false otherwise.
+     */
+    public boolean unsubscribe(Domain domain, Subscriber subscriber) {
+        boolean[] removed = new boolean[1];
+        this.subscribers.computeIfPresent(domain, (key, set) -> {
+            removed[0] = set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Offers the new temperature of a device to the
+     * subscribers of it's domains, called after it's
+     * written.
+     * @param device
+     *      Device that sent the temperature.
+     * @param domains
+     *      Domains the device is registered in.
+     */
+    public void publish(Device device, Set<Domain> domains) {
+        if (this.subscribers.isEmpty())
+            return;
+
+        for (Domain domain : domains) {
+            Set<Subscriber> set = this.subscribers.get(domain);
+            if (set == null)
+                continue;
+
+            for (Subscriber subscriber : set) {
+                // Sessions closed since they subscribed
+                if (subscriber.isClosed())
+                    set.remove(subscriber);
+                else
+                    subscriber.offer(device);
+            }
+            if (set.isEmpty())
+                this.subscribers.computeIfPresent(domain, (key, current) -> current.isEmpty() ? null : current);
+        }
+    }
+}
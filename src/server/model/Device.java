@@ -1,11 +1,16 @@
 package server.model;
 
-import java.util.List;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import utils.IoTFileManager;
 import utils.IoTIParsable;
+import utils.IoTReadings;
+import utils.IoTSerialReader;
+import utils.IoTTimeSeries;
 
 
 
@@ -14,32 +19,48 @@ public class Device implements IoTIParsable {
     // String template for parsing
     private final String DEVICE_TEMP = "{Owner=%s,DevID=%s,ImageName=%s}";
 
-    private Boolean isActive;
+    private final AtomicBoolean isActive;
     private final User owner;
     private final int devId;
     private final String name;
-    private String imgFileName = null;
+    private volatile String imgFileName = null;
     private String tempFileName;
+    // Latest reading, kept in memory so domains don't read every log
+    private volatile Float lastTemperature = null;
+    // Orders the appends with the latest reading, pipelined requests
+    // of a device write concurrently. Not a monitor, a virtual thread
+    // blocked on it would pin it's carrier
+    private final ReentrantLock tempLock = new ReentrantLock();
 
     public Device(User owner, int devId) {
-        this.isActive = false;
+        this.isActive = new AtomicBoolean(false);
         this.owner = owner;
         this.devId = devId;
-        this.name = String.format("%s:%s", owner.getName(), devId);
-        this.tempFileName = String.format("%s_dev_%s_temp_log.txt", owner.getName(), devId);
+        this.name = nameOf(owner.getName(), devId);
+        this.tempFileName = owner.getName() + "_dev_" + devId + "_temp_log.bin";
 
     }
 
     public void setActive() {
-        this.isActive = true;
+        this.isActive.set(true);
+    }
+
+    /**
+     * Turns the device on if it's off.
+     * @return
+     *      True if the device was off, false if it's
+     *      already in use by another session.
+     */
+    public boolean tryActivate() {
+        return this.isActive.compareAndSet(false, true);
     }
 
     public void turnOff() {
-        this.isActive = false;
+        this.isActive.set(false);
     }
 
     public Boolean isActive() {
-        return this.isActive;
+        return this.isActive.get();
     }
 
 
@@ -70,15 +91,55 @@ public class Device implements IoTIParsable {
     }
 
     /**
-     * Registers the temperature.
+     * Registers the temperature, keeping the previous
+     * readings.
+     * @param timestamp
+     *      Time of the reading in milliseconds since epoch.
      * @param temperature
      *      Temperature reading.
      * @return
      *      True if registered successfully, false
      *      otherwise.
      */
-    public Boolean writeTemperature(String temperature) {
-        return IoTFileManager.writeDeviceFile(this, this.tempFileName, temperature.getBytes()) == 0 ? true : false;
+    public Boolean writeTemperature(long timestamp, float temperature) {
+        this.tempLock.lock();
+        try {
+            if (IoTFileManager.appendDeviceTemp(this, timestamp, temperature) != 0)
+                return false;
+            this.lastTemperature = temperature;
+            return true;
+        } finally {
+            this.tempLock.unlock();
+        }
+    }
+
+    /**
+     * Registers several temperatures at once, keeping
+     * the previous readings.
+     * @param readings
+     *      Readings in timestamp order, none older than
+     *      the last reading of the device.
+     * @return <ul>
+     *      <li> 0 if registered successfully;
+     *      <li> -1 if error occured while writing;
+     *      <li> -2 if the readings are out of order or older
+     *      than the last reading of the device;
+     */
+    public int writeTemperatures(IoTReadings readings) {
+        if (readings == null || readings.isEmpty())
+            return -1;
+        this.tempLock.lock();
+        try {
+            int written = IoTFileManager.appendDeviceTemps(this, readings);
+            if (written == -3)
+                return -2;
+            if (written != 0)
+                return -1;
+            this.lastTemperature = readings.getValue(readings.size() - 1);
+            return 0;
+        } finally {
+            this.tempLock.unlock();
+        }
     }
 
     /**
@@ -101,14 +162,78 @@ public class Device implements IoTIParsable {
 
     /**
      * Get the latest temperature reading reported
-     * by the device.
+     * by the device, without accessing the storage.
      * @return
      *      Temperature reading or nothing if the device
-     *      hasn't sent any readings yet or an error while
-     *      trying to get the reading.
+     *      hasn't sent any readings yet.
      */
     public Optional<Float> readTemperature() {
-        return IoTFileManager.readDeviceTemp(this);
+        return Optional.ofNullable(this.lastTemperature);
+    }
+
+    /**
+     * Loads the latest temperature reading from the
+     * storage, used when the server starts.
+     */
+    public void loadTemperature() {
+        Optional<Float> temperature = IoTFileManager.readDeviceTemp(this);
+        if (temperature.isPresent())
+            this.lastTemperature = temperature.get();
+    }
+
+    /**
+     * Get the temperature readings reported by the
+     * device within a time range.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      Readings in the range, empty if there is none.
+     */
+    public IoTReadings readTemperatures(long from, long to) {
+        return IoTFileManager.readDeviceTemps(this, from, to);
+    }
+
+    /**
+     * Visits the temperature readings reported by the
+     * device within a time range, without keeping them.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @param visitor
+     *      Called with each reading, oldest first.
+     */
+    public void scanTemperatures(long from, long to, IoTTimeSeries.Visitor visitor) {
+        IoTFileManager.scanDeviceTemps(this, from, to, visitor);
+    }
+
+    /**
+     * Get the oldest and the newest temperature reading
+     * reported by the device within a time range.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      The two readings, or nothing if there is none.
+     */
+    public Optional<IoTReadings> readTemperatureBounds(long from, long to) {
+        return IoTFileManager.readDeviceTempBounds(this, from, to);
+    }
+
+    /**
+     * Get the most recent temperature readings reported
+     * by the device.
+     * @param count
+     *      Maximum number of readings.
+     * @return
+     *      Up to count readings, the most recent last,
+     *      empty if there is none.
+     */
+    public IoTReadings readRecentTemperatures(int count) {
+        return IoTFileManager.readRecentDeviceTemps(this, count);
     }
 
     /**
@@ -122,6 +247,18 @@ public class Device implements IoTIParsable {
         return IoTFileManager.readDeviceImg(this);
     }
 
+    /**
+     * Opens the lastest image sent to the device, so it
+     * can be streamed without loading it whole.
+     * @return
+     *      Channel of the image or nothing if the device
+     *      hasn't uploaded any image yet or an error
+     *      occured while trying to open it.
+     */
+    public Optional<FileChannel> openImage() {
+        return IoTFileManager.openDeviceImg(this);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -135,10 +272,23 @@ public class Device implements IoTIParsable {
         return this.name.hashCode();
     }
 
+    /**
+     * Gets the name of a device, which identifies it.
+     * @param owner
+     *      Name of the owner.
+     * @param devId
+     *      Device id.
+     * @return
+     *      Name in the format <owner>:<dev-id>.
+     */
+    public static String nameOf(String owner, int devId) {
+        return owner + ":" + devId;
+    }
+
     /**
      * Creates a Device object from the given string,
-     * which must has the following format:
-     * <user-parsed-descr>|<dev-id>
+     * which must have the following format:
+     * {Owner=<user-parsed-descr>,DevID=<dev-id>,ImageName=<name>}
      * @param users
      *      Map containing users.
      * @param serial
@@ -150,50 +300,35 @@ public class Device implements IoTIParsable {
     public static Device parseFromSerial(Map<String, User> users, String serial) {
         if (serial == null)
             return null;
-        
-        int start_brace_index = serial.indexOf("{");
-        if (start_brace_index < 0)
-            return null;
 
-        int end_brace_index = serial.lastIndexOf("}");
-        if (end_brace_index == -1)
+        IoTSerialReader reader = new IoTSerialReader(serial);
+        if (!reader.enter('{'))
             return null;
-        
-        // Extract content between curly brackets {}
-        String content = serial.substring(start_brace_index+1, end_brace_index);
-
-        List<String> tokens = IoTIParsable.separateStrByChar(',', content);
-        if (tokens.size() < 3)
-            return null;
-        
 
         User user = null;
         int devid = -1;
         String imagename = null;
+        int fields = 0;
 
-        for (String string : tokens) {
-            String[] params = string.split("=", 2);
-            if (params.length != 2)
-                continue;
-            
-
-            if (params[0].compareToIgnoreCase("OWNER") == 0) {
-                User tempUser = User.parseFromSerial(params[1]);
-                user = users.get(tempUser.getName());
+        while (reader.next()) {
+            fields++;
+            if (reader.isKey("OWNER")) {
+                user = users.get(reader.name());
                 if (user == null)
                     return null;
-            } else if (params[0].compareToIgnoreCase("DEVID") == 0) {
-                try {
-                    devid = Integer.parseInt(params[1]);
-                } catch (NumberFormatException e) {
+            } else if (reader.isKey("DEVID")) {
+                devid = reader.intValue();
+                if (devid < 0)
                     return null;
-                }
-            } else if (params[0].compareToIgnoreCase("IMAGENAME") == 0) {
-                if (!params[1].equalsIgnoreCase("NULL"))
-                    imagename = params[1];
+            } else if (reader.isKey("IMAGENAME")) {
+                String value = reader.value();
+                if (!value.equalsIgnoreCase("NULL"))
+                    imagename = value;
+            } else {
+                reader.skip();
             }
         }
-        if (user == null || devid < 0)
+        if (fields < 3 || user == null || devid < 0)
             return null;
 
         Device device = new Device(user, devid);
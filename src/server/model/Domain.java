@@ -1,19 +1,23 @@
 package server.model;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import utils.IoTIParsable;
+import utils.IoTReadings;
+import utils.IoTSerialReader;
+import utils.IoTTemperatureStats;
+import utils.IoTTemperatures;
 
 public class Domain implements IoTIParsable {
 
-    private static final String LINE = System.getProperty("line.separator");
     // String template for parsing
     private final String DOMAIN_TEMP = "{Name=%s,Owner=%s,NameSpace=%s,Devices=%s}";
 
@@ -25,25 +29,39 @@ public class Domain implements IoTIParsable {
     public Domain(String name, User owner) {
         this.name = name;
         this.owner = owner;
-        this.namespace = new HashSet<>();
+        // Concurrent sets, membership is checked without locking
+        this.namespace = ConcurrentHashMap.newKeySet();
         this.namespace.add(owner);
-        this.devices = new HashSet<>();
+        this.devices = ConcurrentHashMap.newKeySet();
     }
 
     public String getName() {
         return this.name;
     }
 
+    public User getOwner() {
+        return this.owner;
+    }
+
+    public Set<User> getNamespace() {
+        return Collections.unmodifiableSet(this.namespace);
+    }
+
+    public Set<Device> getDevices() {
+        return Collections.unmodifiableSet(this.devices);
+    }
+
     public Boolean ownedBy(User user) {
         return this.owner.equals(user);
     }
 
     public Boolean contains(User user) {
-        return this.namespace.contains(user);
+        // Concurrent sets don't take null, e.g. unauthenticated sessions
+        return user != null && this.namespace.contains(user);
     }
 
     public Boolean contains(Device device) {
-        return this.devices.contains(device);
+        return device != null && this.devices.contains(device);
     }
 
     public boolean addUser(User user) {
@@ -54,15 +72,59 @@ public class Domain implements IoTIParsable {
         return this.devices.add(device);
     }
 
-    public Map<String,Float> extractTemperatures() {
-        Map<String,Float> map = new HashMap<String,Float>();
+    /**
+     * Get the latest temperature of each device of the
+     * domain that has sent any.
+     * @return
+     *      Temperatures by device name.
+     */
+    public IoTTemperatures extractTemperatures() {
+        IoTTemperatures temperatures = new IoTTemperatures(this.devices.size());
         for (Device device : this.devices) {
-            Optional<Float> lastTemperature = device.readTemperature();                 
-            if (lastTemperature.isPresent()) {
-                map.put(device.getName(), lastTemperature.get());
+            Optional<Float> lastTemperature = device.readTemperature();
+            if (lastTemperature.isPresent())
+                temperatures.add(device.getName(), lastTemperature.get());
+        }
+        return temperatures;
+    }
+
+    /**
+     * Summarizes the temperature readings of every device
+     * of the domain within a time range, going through the
+     * readings of each device once without keeping them,
+     * so a wide range doesn't take more memory.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @param buckets
+     *      Number of time buckets between the oldest and the
+     *      newest reading, 0 for none.
+     * @return
+     *      Summary of the readings, or null if there are no
+     *      readings or the number of buckets is invalid.
+     */
+    public IoTTemperatureStats summarizeTemperatures(long from, long to, int buckets) {
+        if (buckets < 0 || buckets > IoTTemperatureStats.MAX_BUCKETS)
+            return null;
+
+        // The buckets are split between the oldest and the newest reading
+        long oldest = Long.MAX_VALUE, newest = Long.MIN_VALUE;
+        for (Device device : this.devices) {
+            Optional<IoTReadings> bounds = device.readTemperatureBounds(from, to);
+            if (bounds.isPresent()) {
+                oldest = Math.min(oldest, bounds.get().getTimestamp(0));
+                newest = Math.max(newest, bounds.get().getTimestamp(1));
             }
         }
-        return map;
+        if (oldest > newest)
+            return null;
+
+        // Readings sent meanwhile are left out
+        IoTTemperatureStats.Builder builder = new IoTTemperatureStats.Builder(oldest, newest, buckets);
+        for (Device device : this.devices)
+            device.scanTemperatures(from, Math.min(to, newest), builder::add);
+        return builder.build();
     }
 
     @Override
@@ -91,86 +153,47 @@ public class Domain implements IoTIParsable {
     public static Domain parseFromSerial(Map<String, User> users, Map<String, Device> devices,String serial) {
         if (serial == null)
             return null;
-        
-        // Remove lines
-        serial.replace(LINE, "");
-        serial.replace("\t", "");
 
-        int start_brace_index = serial.indexOf("{");
-        if (start_brace_index < 0)
+        IoTSerialReader reader = new IoTSerialReader(serial);
+        if (!reader.enter('{'))
             return null;
 
-        int end_brace_index = serial.lastIndexOf("}");
-        if (end_brace_index == -1)
-            return null;
-        
-        // Extract content between curly brackets {}
-        String content = serial.substring(start_brace_index+1, end_brace_index);
-
-        // Split by commas, ignoring strings between {} and []
-        List<String> tokens = IoTIParsable.separateStrByChar(',', content);
-
-        String name = null, ownerStr = null, namespaceStr = null, devicesStr = null;
-
-        for (int i = 0; i < tokens.size(); i++) {
-            // Split each token into 2
-            String[] args = tokens.get(i).split("=",2);
-            if (args.length < 2)
-                continue;
-            
-            if (args[0].equalsIgnoreCase("NAME")) {
+        String name = null;
+        User owner = null;
+        List<User> namespace = null;
+        List<Device> domainDevices = null;
+
+        // Users and devices are references, only their names are read
+        while (reader.next()) {
+            if (reader.isKey("NAME")) {
+                String value = reader.value();
                 if (name == null)
-                    name = args[1];
-            } else if (args[0].equalsIgnoreCase("OWNER")) {
-                if (ownerStr == null)
-                    ownerStr = args[1];
-            } else if (args[0].equalsIgnoreCase("NAMESPACE")) {
-                if (namespaceStr == null)
-                    namespaceStr = args[1];
-            } else if (args[0].equalsIgnoreCase("DEVICES")) {
-                if (devicesStr == null)
-                    devicesStr = args[1];
+                    name = value;
+            } else if (reader.isKey("OWNER") && owner == null) {
+                owner = users.get(reader.name());
+                if (owner == null)
+                    return null;
+            } else if (reader.isKey("NAMESPACE") && namespace == null) {
+                namespace = parseUsersFromSerial(users, reader);
+                if (namespace == null)
+                    return null;
+            } else if (reader.isKey("DEVICES") && domainDevices == null) {
+                domainDevices = parseDevicesFromSerial(devices, reader);
+                if (domainDevices == null)
+                    return null;
+            } else {
+                // Unknown, or repeated after it's key was read
+                reader.skip();
             }
         }
-
-        // Create owner user
-        User tempOwner = User.parseFromSerial(ownerStr);
-        if (tempOwner == null)
-            return null;
-        User owner = users.get(tempOwner.getName());
-        if (owner == null)
+        if (name == null || owner == null || namespace == null || domainDevices == null)
             return null;
-        
+
         Domain domain = new Domain(name, owner);
-        
-        // Add each user in the namespace
-        List<String> namespaceList = parseSetFromSerial(namespaceStr);
-        if (namespaceList == null)
-            return null;
-        for (String userStr : namespaceList) {
-            // Temporary object, used to extract the name
-            User tempUser = User.parseFromSerial(userStr);
-            if (tempUser == null)
-                return null;
-            User user = users.get(tempUser.getName());
-            if (user == null)
-                return null;
+        for (User user : namespace)
             domain.addUser(user);
-        }
-
-        // Add each device to the namespace
-        List<String> devicesList = parseSetFromSerial(devicesStr);
-        if (devicesList == null)
-            return null;
-        for (String deviceStr : devicesList) {
-            Device tempDevice = Device.parseFromSerial(users, deviceStr);
-            if (tempDevice == null)
-                return null;
-            Device device = devices.get(tempDevice.getName());
-            if (device == null)
-                return null;
+        for (Device device : domainDevices)
             domain.registerDevice(device);
-        }
 
         return domain;
     }
@@ -204,26 +227,61 @@ public class Domain implements IoTIParsable {
     }
 
     /**
-     * Parses a string into a list or null if the 
-     * string doesn't match the correct format.
-     * The format is "[x,y,z,...]"
-     * @param serial
+     * Reads a list of users "[x:y,...]", finding each one
+     * by name.
      * @return
+     *      Users of the list, or null if the list is
+     *      missing or a user doesn't exist.
      */
-    private static List<String> parseSetFromSerial(String serial) {
-        int start_brace_index = serial.indexOf("[");
-        if (start_brace_index < 0)
+    private static List<User> parseUsersFromSerial(Map<String, User> users, IoTSerialReader reader) {
+        if (!reader.enter('['))
             return null;
 
-        int end_brace_index = serial.lastIndexOf("]");
-        if (end_brace_index == -1)
+        List<User> result = new ArrayList<>();
+        while (reader.next()) {
+            User user = users.get(reader.name());
+            if (user == null)
+                return null;
+            result.add(user);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a list of devices "[{Owner=x:y,DevID=z,...},...]",
+     * finding each one by name, without creating them again.
+     * @return
+     *      Devices of the list, or null if the list is
+     *      missing or a device doesn't exist.
+     */
+    private static List<Device> parseDevicesFromSerial(Map<String, Device> devices, IoTSerialReader reader) {
+        if (!reader.enter('['))
             return null;
-        
-        String content = serial.substring(start_brace_index+1, end_brace_index);
 
-        List<String> strings = IoTIParsable.separateStrByChar(',', content);
-        
-        return strings;
+        List<Device> result = new ArrayList<>();
+        while (reader.next()) {
+            if (!reader.enter('{'))
+                return null;
+
+            String owner = null;
+            int devId = -1;
+            while (reader.next()) {
+                if (reader.isKey("OWNER"))
+                    owner = reader.name();
+                else if (reader.isKey("DEVID"))
+                    devId = reader.intValue();
+                else
+                    reader.skip();
+            }
+            if (owner == null || devId < 0)
+                return null;
+
+            Device device = devices.get(Device.nameOf(owner, devId));
+            if (device == null)
+                return null;
+            result.add(device);
+        }
+        return result;
     }
     
 }
@@ -0,0 +1,147 @@
+package server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Optional;
+
+import utils.IoTFileManager;
+
+/**
+ * Image being received in chunks. The chunks are written
+ * to a temporary file as they arrive, only the finished
+ * image replaces the device's current one.
+ */
+public class ImageUpload {
+    private final Device device;
+    private final String imageName;
+    private final long size;
+    private final FileChannel channel;
+    private long received;
+    private Boolean failed;
+    private Boolean finished;
+
+    private ImageUpload(Device device, String imageName, long size, FileChannel channel) {
+        this.device = device;
+        this.imageName = imageName;
+        this.size = size;
+        this.channel = channel;
+        this.received = 0;
+        this.failed = false;
+        this.finished = false;
+    }
+
+    /**
+     * Starts receiving an image.
+     * @param device
+     *      Device that sends the image.
+     * @param imageName
+     *      Name of the image, not the path.
+     * @param size
+     *      Size of the image in bytes.
+     * @return
+     *      The upload or nothing if the arguments are
+     *      invalid or the temporary file couldn't be created.
+     */
+    public static Optional<ImageUpload> begin(Device device, String imageName, long size) {
+        if (device == null || imageName == null || size <= 0)
+            return Optional.empty();
+
+        Optional<FileChannel> channel = IoTFileManager.createDeviceTempFile(device, imageName);
+        if (!channel.isPresent())
+            return Optional.empty();
+        return Optional.of(new ImageUpload(device, imageName, size, channel.get()));
+    }
+
+    public Device getDevice() {
+        return this.device;
+    }
+
+    /**
+     * Writes the next chunk of the image. After an error
+     * the remaining chunks are ignored, so the sender can
+     * still finish and receive the answer.
+     * @param chunk
+     *      Bytes of the chunk.
+     */
+    public void write(byte[] chunk) {
+        if (chunk == null) {
+            this.failed = true;
+            this.received = this.size;
+            return;
+        }
+        write(chunk, 0, chunk.length);
+    }
+
+    /**
+     * Writes part of an array as the next chunk of the image.
+     * @param bytes
+     *      Array containing the chunk.
+     * @param offset
+     *      Start of the chunk in the array.
+     * @param length
+     *      Length of the chunk.
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        if (length > this.size - this.received) {
+            this.failed = true;
+            this.received = this.size;
+            return;
+        }
+
+        this.received += length;
+        if (this.failed)
+            return;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining())
+                this.channel.write(buffer);
+        } catch (IOException e) {
+            this.failed = true;
+        }
+    }
+
+    /**
+     * Checks if all the bytes of the image arrived.
+     */
+    public Boolean isComplete() {
+        return this.received >= this.size;
+    }
+
+    /**
+     * Replaces the device's image with the received one.
+     * @return
+     *      True if replaced, false if the upload failed.
+     */
+    public Boolean commit() {
+        this.finished = true;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            this.failed = true;
+        }
+
+        if (this.failed || IoTFileManager.commitDeviceTempFile(this.device, this.imageName) != 0) {
+            IoTFileManager.deleteDeviceTempFile(this.device, this.imageName);
+            return false;
+        }
+        this.device.setImgFileName(this.imageName);
+        return true;
+    }
+
+    /**
+     * Discards the received chunks, does nothing
+     * if the upload was already committed.
+     */
+    public void abort() {
+        if (this.finished)
+            return;
+        this.finished = true;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+        }
+        IoTFileManager.deleteDeviceTempFile(this.device, this.imageName);
+    }
+}
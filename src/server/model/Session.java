@@ -1,21 +1,43 @@
 package server.model;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.IoTSubscriptions;
 import utils.IoTAuth;
+import utils.IoTMessage;
 
 /**
  * Represents a session between a device and 
  * server, contains data regarding the 
  * authentication state.
+ * A gateway session also carries the traffic of other
+ * devices of the user, attached after the user is
+ * authenticated, and requests choose the device by id.
  */
 public class Session {
+    // Id requests use for the device of the session, no device has it
+    public static final int OWN_DEVICE = IoTMessage.OWN_DEVICE;
+
     private Device device;
     private User user;
     private IoTAuth authState;
+    // Image being received, if any
+    private ImageUpload upload;
+    // Devices attached by a gateway, by device id
+    private final Map<Integer, Device> attached;
+    // Pushed temperature updates, null if the connection can't push
+    private Subscriber subscriber;
+    // Domains subscribed, dropped when the session closes
+    private final Set<Domain> subscribed;
 
     public Session() {
         this.device = null;
         this.user = null;
         this.authState = IoTAuth.NONE;
+        this.attached = new ConcurrentHashMap<>();
+        this.subscribed = ConcurrentHashMap.newKeySet();
     }
 
     /**
@@ -30,6 +52,96 @@ public class Session {
         return this.device;
     }
 
+    /**
+     * Gets the device a request refers to.
+     * @param devId
+     *      Id of an attached device, or {@link #OWN_DEVICE}
+     *      for the device of the session.
+     * @return
+     *      The device or null if it isn't attached.
+     */
+    public Device getDevice(int devId) {
+        if (devId == OWN_DEVICE)
+            return this.device;
+        if (this.device != null && this.device.getDevId() == devId)
+            return this.device;
+        return this.attached.get(devId);
+    }
+
+    /**
+     * Attaches an active device to the session, it's
+     * turned off when detached or when the session closes.
+     * @param device
+     */
+    public void attachDevice(Device device) {
+        this.attached.put(device.getDevId(), device);
+    }
+
+    /**
+     * Detaches a device and turns it off.
+     * @param devId
+     * @return
+     *      True if the device was attached, false otherwise.
+     */
+    public boolean detachDevice(int devId) {
+        Device device = this.attached.remove(devId);
+        if (device == null)
+            return false;
+        device.turnOff();
+        return true;
+    }
+
+    /**
+     * Allows the session to subscribe to temperature updates,
+     * done by connections able to push them.
+     * @param wakeup
+     *      Tells the connection there are updates to push,
+     *      must not block.
+     */
+    public void enablePush(Runnable wakeup) {
+        this.subscriber = new Subscriber(wakeup);
+    }
+
+    /**
+     * Gets the updates pushed to the session.
+     * @return
+     *      The subscriber or null if the connection can't
+     *      push updates.
+     */
+    public Subscriber getSubscriber() {
+        return this.subscriber;
+    }
+
+    /**
+     * Subscribes the session to the temperatures of a domain.
+     * @param domain
+     * @return
+     *      True if subscribed, false if the connection can't
+     *      push updates.
+     */
+    public boolean subscribe(Domain domain) {
+        if (this.subscriber == null)
+            return false;
+
+        this.subscribed.add(domain);
+        IoTSubscriptions.getInstance().subscribe(domain, this.subscriber);
+        // Closed meanwhile, close() may have missed it
+        if (this.subscriber.isClosed())
+            unsubscribe(domain);
+        return true;
+    }
+
+    /**
+     * Stops the temperature updates of a domain.
+     * @param domain
+     * @return
+     *      True if it was subscribed, false otherwise.
+     */
+    public boolean unsubscribe(Domain domain) {
+        this.subscribed.remove(domain);
+        return this.subscriber != null && IoTSubscriptions.getInstance().unsubscribe(domain, this.subscriber);
+    }
+
     /**
      * Defines the user in the session
      * @param user
@@ -50,11 +162,38 @@ public class Session {
         this.authState = state;
     }
 
+    /**
+     * Defines the image being received, discarding
+     * the previous one if it wasn't finished.
+     * @param upload
+     */
+    public void setUpload(ImageUpload upload) {
+        if (this.upload != null && this.upload != upload)
+            this.upload.abort();
+        this.upload = upload;
+    }
+
+    public ImageUpload getUpload() {
+        return this.upload;
+    }
+
     /**
      * Terminates a session and puts 
      * device active state to off.
      */
     public void close() {
+        setUpload(null);
+
+        if (this.subscriber != null) {
+            this.subscriber.close();
+            // Quiet domains would keep the connection otherwise
+            for (Domain domain : this.subscribed)
+                unsubscribe(domain);
+        }
+
+        for (Integer devId : this.attached.keySet())
+            detachDevice(devId);
+
         // Set the device active state to off only if it has been turned on
         if ((this.authState == IoTAuth.COMPLETE || this.authState == IoTAuth.USER_DEVICE) 
             && this.device != null) {
@@ -0,0 +1,105 @@
+package server.model;
+
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import utils.IoTMessage;
+import utils.IoTMessageType;
+import utils.IoTOpcodes;
+import utils.IoTTemperatures;
+
+/**
+ * Temperature updates waiting to be pushed to a session
+ * subscribed to domains.
+ * Only which devices were updated is kept, their latest
+ * temperature is read when the update is pushed, so a slow
+ * client gets fewer and bigger updates instead of the server
+ * queueing every reading for it, devices sending
+ * temperatures never wait for it and concurrent readings of
+ * a device can't be pushed out of order. The connection is woken when updates arrive
+ * and takes them with {@link #drain()} whenever it's free
+ * to write, at most one update is in flight per session.
+ */
+public class Subscriber {
+    // Tells the connection there are updates to drain
+    private final Runnable wakeup;
+    // Devices updated since the last drain, in arrival order
+    private final Set<Device> pending;
+    // Woken and not fully drained yet
+    private boolean scheduled;
+    private boolean closed;
+
+    /**
+     * @param wakeup
+     *      Called by the thread offering the first update
+     *      after a drain, must not block.
+     */
+    public Subscriber(Runnable wakeup) {
+        this.wakeup = wakeup;
+        this.pending = new LinkedHashSet<>();
+        this.scheduled = false;
+        this.closed = false;
+    }
+
+    /**
+     * Adds an update, merged with the one of the same device
+     * that wasn't pushed yet.
+     * @param device
+     *      Device that sent a temperature.
+     */
+    public void offer(Device device) {
+        boolean wake;
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.pending.add(device);
+            wake = !this.scheduled;
+            this.scheduled = true;
+        }
+        if (wake)
+            this.wakeup.run();
+    }
+
+    /**
+     * Takes every pending update.
+     * @return
+     *      TEMP_UPDATE message with the latest temperature of
+     *      each updated device, or null if there is none, the
+     *      connection is woken again by the next update.
+     */
+    public IoTMessageType drain() {
+        IoTTemperatures temperatures;
+        synchronized (this) {
+            if (this.closed || this.pending.isEmpty()) {
+                this.scheduled = false;
+                return null;
+            }
+            temperatures = new IoTTemperatures(this.pending.size());
+            for (Device device : this.pending) {
+                Optional<Float> temperature = device.readTemperature();
+                if (temperature.isPresent())
+                    temperatures.add(device.getName(), temperature.get());
+            }
+            this.pending.clear();
+        }
+
+        IoTMessageType message = new IoTMessage();
+        message.setOpCode(IoTOpcodes.TEMP_UPDATE);
+        message.setTemperatures(temperatures);
+        return message;
+    }
+
+    /**
+     * Discards the pending updates and ignores the next ones,
+     * the session then drops it's subscriptions.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        this.pending.clear();
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+}
@@ -43,12 +43,11 @@ public class User implements IoTIParsable {
      *      the correct format.
      */
     public static User parseFromSerial(String serial) {
-        User parsedUser = null;
-        String[] tokens = serial.split(":", 2);
-        if (tokens.length >= 2)
-            parsedUser = new User(tokens[0], tokens[1]); 
+        int colon = serial.indexOf(':');
+        if (colon < 0)
+            return null;
 
-        return parsedUser;
+        return new User(serial.substring(0, colon), serial.substring(colon + 1));
     }
 
     @Override
@@ -0,0 +1,348 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link IoTMessageType}.
+ * A payload starts with the opcode ordinal and a mask of
+ * the fields present in the message, followed by those
+ * fields only, in the order of the masks below. Fields
+ * holding their default value (null, 0, the own device
+ * for the device id) are omitted, so
+ * a temperature reading takes a few bytes.
+ */
+public class IoTBinaryCodec {
+
+    // Field masks, also define the order of the fields
+    private static final int USERID = 1;
+    private static final int USERPWD = 1 << 1;
+    private static final int DEVID = 1 << 2;
+    private static final int PROGRAM_NAME = 1 << 3;
+    private static final int PROGRAM_SIZE = 1 << 4;
+    private static final int DOMAIN_NAME = 1 << 5;
+    private static final int TEMP = 1 << 6;
+    private static final int TEMPS = 1 << 7;
+    private static final int IMG_NAME = 1 << 8;
+    private static final int IMG_SIZE = 1 << 9;
+    private static final int IMG = 1 << 10;
+    private static final int DATA = 1 << 11;
+    private static final int TIME_FROM = 1 << 12;
+    private static final int TIME_TO = 1 << 13;
+    private static final int READINGS = 1 << 14;
+    private static final int CORR_ID = 1 << 15;
+    private static final int COUNT = 1 << 16;
+    private static final int TEMPERATURES = 1 << 17;
+    private static final int STATS = 1 << 18;
+
+    private static final IoTOpcodes[] OPCODES = IoTOpcodes.values();
+
+    private IoTBinaryCodec() {
+    }
+
+    /**
+     * Encodes a message into a payload.
+     * @param message
+     *      Message to be encoded.
+     * @return
+     *      Payload bytes or null if the message couldn't
+     *      be encoded.
+     */
+    @SuppressWarnings("deprecation")
+    public static byte[] encode(IoTMessageType message) {
+        if (message == null || message.getOpcode() == null)
+            return null;
+
+        int mask = 0;
+        if (message.getUserId() != null)
+            mask |= USERID;
+        if (message.getUserPwd() != null)
+            mask |= USERPWD;
+        if (message.getDevId() != IoTMessage.OWN_DEVICE)
+            mask |= DEVID;
+        if (message.getProgramName() != null)
+            mask |= PROGRAM_NAME;
+        if (message.getProgramSize() != 0)
+            mask |= PROGRAM_SIZE;
+        if (message.getDomainName() != null)
+            mask |= DOMAIN_NAME;
+        if (message.getTemp() != 0)
+            mask |= TEMP;
+        if (message.getTemps() != null)
+            mask |= TEMPS;
+        if (message.getImageName() != null)
+            mask |= IMG_NAME;
+        if (message.getImageSize() != 0)
+            mask |= IMG_SIZE;
+        if (message.getImage() != null)
+            mask |= IMG;
+        if (message.getData() != null)
+            mask |= DATA;
+        if (message.getTimeFrom() != 0)
+            mask |= TIME_FROM;
+        if (message.getTimeTo() != 0)
+            mask |= TIME_TO;
+        if (message.getReadings() != null)
+            mask |= READINGS;
+        if (message.getCorrelationId() != 0)
+            mask |= CORR_ID;
+        if (message.getCount() != 0)
+            mask |= COUNT;
+        if (message.getTemperatures() != null)
+            mask |= TEMPERATURES;
+        if (message.getTemperatureStats() != null)
+            mask |= STATS;
+
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint(message));
+            DataOutputStream writer = new DataOutputStream(bytes)) {
+            writer.writeByte(message.getOpcode().ordinal());
+            writer.writeInt(mask);
+
+            if ((mask & USERID) != 0)
+                writer.writeUTF(message.getUserId());
+            if ((mask & USERPWD) != 0)
+                writer.writeUTF(message.getUserPwd());
+            if ((mask & DEVID) != 0)
+                writer.writeInt(message.getDevId());
+            if ((mask & PROGRAM_NAME) != 0)
+                writer.writeUTF(message.getProgramName());
+            if ((mask & PROGRAM_SIZE) != 0)
+                writer.writeLong(message.getProgramSize());
+            if ((mask & DOMAIN_NAME) != 0)
+                writer.writeUTF(message.getDomainName());
+            if ((mask & TEMP) != 0)
+                writer.writeFloat(message.getTemp());
+            if ((mask & TEMPS) != 0) {
+                Map<String, Float> temps = message.getTemps();
+                writer.writeInt(temps.size());
+                for (Map.Entry<String, Float> entry : temps.entrySet()) {
+                    writer.writeUTF(entry.getKey());
+                    writer.writeFloat(entry.getValue());
+                }
+            }
+            if ((mask & IMG_NAME) != 0)
+                writer.writeUTF(message.getImageName());
+            if ((mask & IMG_SIZE) != 0)
+                writer.writeLong(message.getImageSize());
+            if ((mask & IMG) != 0)
+                writeBytes(writer, message.getImage());
+            if ((mask & DATA) != 0)
+                writeBytes(writer, message.getData());
+            if ((mask & TIME_FROM) != 0)
+                writer.writeLong(message.getTimeFrom());
+            if ((mask & TIME_TO) != 0)
+                writer.writeLong(message.getTimeTo());
+            if ((mask & READINGS) != 0)
+                writeReadings(writer, message.getReadings());
+            if ((mask & CORR_ID) != 0)
+                writer.writeInt(message.getCorrelationId());
+            if ((mask & COUNT) != 0)
+                writer.writeInt(message.getCount());
+            if ((mask & TEMPERATURES) != 0)
+                writeTemperatures(writer, message.getTemperatures());
+            if ((mask & STATS) != 0)
+                writeStats(writer, message.getTemperatureStats());
+
+            writer.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a payload into a message.
+     * @param payload
+     *      Buffer containing the payload.
+     * @param offset
+     *      Start of the payload in the buffer.
+     * @param length
+     *      Length of the payload.
+     * @return
+     *      Decoded message or null if the payload
+     *      is corrupted.
+     */
+    @SuppressWarnings("deprecation")
+    public static IoTMessageType decode(byte[] payload, int offset, int length) {
+        if (payload == null || length <= 0)
+            return null;
+
+        try (DataInputStream reader = new DataInputStream(
+                new ByteArrayInputStream(payload, offset, length))) {
+            int opcode = reader.readUnsignedByte();
+            if (opcode >= OPCODES.length)
+                return null;
+            int mask = reader.readInt();
+
+            IoTMessageType message = new IoTMessage();
+            message.setOpCode(OPCODES[opcode]);
+
+            if ((mask & USERID) != 0)
+                message.setUserId(reader.readUTF());
+            if ((mask & USERPWD) != 0)
+                message.setUserPwd(reader.readUTF());
+            if ((mask & DEVID) != 0)
+                message.setDevId(reader.readInt());
+            if ((mask & PROGRAM_NAME) != 0)
+                message.setProgramName(reader.readUTF());
+            if ((mask & PROGRAM_SIZE) != 0)
+                message.setProgramSize(reader.readLong());
+            if ((mask & DOMAIN_NAME) != 0)
+                message.setDomainName(reader.readUTF());
+            if ((mask & TEMP) != 0)
+                message.setTemp(reader.readFloat());
+            if ((mask & TEMPS) != 0) {
+                int size = reader.readInt();
+                if (size < 0 || size > length)
+                    return null;
+                Map<String, Float> temps = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++)
+                    temps.put(reader.readUTF(), reader.readFloat());
+                message.setTemps(temps);
+            }
+            if ((mask & IMG_NAME) != 0)
+                message.setImageName(reader.readUTF());
+            if ((mask & IMG_SIZE) != 0)
+                message.setImageSize(reader.readLong());
+            if ((mask & IMG) != 0)
+                message.setImage(readBytes(reader, length));
+            if ((mask & DATA) != 0)
+                message.setData(readBytes(reader, length));
+            if ((mask & TIME_FROM) != 0)
+                message.setTimeFrom(reader.readLong());
+            if ((mask & TIME_TO) != 0)
+                message.setTimeTo(reader.readLong());
+            if ((mask & READINGS) != 0)
+                message.setReadings(readReadings(reader, length));
+            if ((mask & CORR_ID) != 0)
+                message.setCorrelationId(reader.readInt());
+            if ((mask & COUNT) != 0)
+                message.setCount(reader.readInt());
+            if ((mask & TEMPERATURES) != 0)
+                message.setTemperatures(readTemperatures(reader, length));
+            if ((mask & STATS) != 0)
+                message.setTemperatureStats(readStats(reader, length));
+
+            return message;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream writer, byte[] bytes) throws IOException {
+        writer.writeInt(bytes.length);
+        writer.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream reader, int limit) throws IOException {
+        int size = reader.readInt();
+        if (size < 0 || size > limit)
+            throw new IOException("Invalid array size");
+        byte[] bytes = new byte[size];
+        reader.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeReadings(DataOutputStream writer, IoTReadings readings) throws IOException {
+        writer.writeInt(readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            writer.writeLong(readings.getTimestamp(i));
+            writer.writeFloat(readings.getValue(i));
+        }
+    }
+
+    private static IoTReadings readReadings(DataInputStream reader, int limit) throws IOException {
+        int size = reader.readInt();
+        if (size < 0 || size > limit / IoTTimeSeries.RECORD_SIZE)
+            throw new IOException("Invalid readings size");
+        IoTReadings readings = new IoTReadings(size);
+        for (int i = 0; i < size; i++)
+            readings.add(reader.readLong(), reader.readFloat());
+        return readings;
+    }
+
+    /**
+     * Writes the names of the devices followed by all the
+     * temperatures, column by column.
+     */
+    private static void writeTemperatures(DataOutputStream writer, IoTTemperatures temperatures) throws IOException {
+        writer.writeInt(temperatures.size());
+        for (int i = 0; i < temperatures.size(); i++)
+            writer.writeUTF(temperatures.getDevice(i));
+        for (int i = 0; i < temperatures.size(); i++)
+            writer.writeFloat(temperatures.getValue(i));
+    }
+
+    private static IoTTemperatures readTemperatures(DataInputStream reader, int limit) throws IOException {
+        int size = reader.readInt();
+        // Each device takes at least a name length and a float
+        if (size < 0 || size > limit / (Short.BYTES + Float.BYTES))
+            throw new IOException("Invalid temperatures size");
+        String[] devices = new String[size];
+        for (int i = 0; i < size; i++)
+            devices[i] = reader.readUTF();
+        IoTTemperatures temperatures = new IoTTemperatures(size);
+        for (int i = 0; i < size; i++)
+            temperatures.add(devices[i], reader.readFloat());
+        return temperatures;
+    }
+
+    private static void writeStats(DataOutputStream writer, IoTTemperatureStats stats) throws IOException {
+        writer.writeLong(stats.getCount());
+        writer.writeFloat(stats.getMin());
+        writer.writeFloat(stats.getMax());
+        writer.writeDouble(stats.getMean());
+        double[] levels = stats.getPercentileLevels();
+        writer.writeInt(levels.length);
+        for (double level : levels) {
+            writer.writeDouble(level);
+            writer.writeFloat(stats.getPercentile(level));
+        }
+        writeReadings(writer, stats.getBuckets());
+    }
+
+    private static IoTTemperatureStats readStats(DataInputStream reader, int limit) throws IOException {
+        long count = reader.readLong();
+        float min = reader.readFloat();
+        float max = reader.readFloat();
+        double mean = reader.readDouble();
+        int size = reader.readInt();
+        if (size < 0 || size > limit / (Double.BYTES + Float.BYTES))
+            throw new IOException("Invalid percentiles size");
+        double[] levels = new double[size];
+        float[] percentiles = new float[size];
+        for (int i = 0; i < size; i++) {
+            levels[i] = reader.readDouble();
+            percentiles[i] = reader.readFloat();
+        }
+        return new IoTTemperatureStats(count, min, max, mean, levels, percentiles, readReadings(reader, limit));
+    }
+
+    /**
+     * Estimates the encoded size, so big payloads don't
+     * have to grow the output buffer.
+     */
+    @SuppressWarnings("deprecation")
+    private static int sizeHint(IoTMessageType message) {
+        int size = 64;
+        if (message.getImage() != null)
+            size += message.getImage().length;
+        if (message.getData() != null)
+            size += message.getData().length;
+        if (message.getReadings() != null)
+            size += message.getReadings().size() * IoTTimeSeries.RECORD_SIZE;
+        if (message.getTemperatureStats() != null)
+            size += message.getTemperatureStats().getBuckets().size() * IoTTimeSeries.RECORD_SIZE;
+        IoTTemperatures temperatures = message.getTemperatures();
+        if (temperatures != null) {
+            for (int i = 0; i < temperatures.size(); i++)
+                size += Short.BYTES + temperatures.getDevice(i).length() + Float.BYTES;
+        }
+        return size;
+    }
+}
@@ -13,9 +13,15 @@ public class IoTCLI {
                                         "\tADD <user> <domain>" + LINE + 
                                         "\tRD <domain>" + LINE +
                                         "\tET <float>" + LINE +
+                                        "\tETB <float> [<float> ...]" + LINE +
                                         "\tEI <image-path>" + LINE +
                                         "\tRT <domain>" + LINE +
                                         "\tRI <user>:<device>" + LINE +
+                                        "\tRH <user>:<device> [<from>] [<to>]" + LINE +
+                                        "\tRL <user>:<device> <count>" + LINE +
+                                        "\tRS <domain> [<from>] [<to>] [<buckets>]" + LINE +
+                                        "\tST <domain>" + LINE +
+                                        "\tUT <domain>" + LINE +
                                         "\tEXIT";
     private static final String LOG_TEMP = "[%s] %s";
     private static final String SHELL = ConsoleColors.GREEN_BOLD + "%s" + ConsoleColors.BLUE_BOLD +
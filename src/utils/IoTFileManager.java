@@ -1,20 +1,29 @@
 package utils;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.util.HashMap;
 import java.util.List;
 import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Scanner;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import server.model.Device;
 import server.model.Domain;
@@ -41,9 +50,19 @@ public class IoTFileManager {
     private static final String PROGRAM_TXT_DB = Paths.get(SERV_METADATA.toString(), "program-info.program").toString();
 
     private static final String SERV_USERDATA = Paths.get(SERVER_ROOT.toString(), "user_files").toString();
+    // Suffix of files being received, renamed once complete
+    private static final String TEMP_SUFFIX = ".part";
 
 
-    private static final Object lock = new Object();
+    // Files are guarded by one of these locks, chosen by path, so
+    // operations on unrelated files rarely wait for each other
+    private static final int LOCK_STRIPES = 256;
+    private static final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new ReentrantReadWriteLock();
+    }
 
     private IoTFileManager() {
     }
@@ -68,7 +87,7 @@ public class IoTFileManager {
      * @return
      *      True if the file is available, false otherwise.
      */
-    public static synchronized boolean isFileAvailable(String filePath) {
+    public static boolean isFileAvailable(String filePath) {
         if (filePath == null)
             return false;
         
@@ -81,6 +100,39 @@ public class IoTFileManager {
         return true;
     }
 
+    /**
+     * Returns the lock guarding a file. Different paths to
+     * the same file always get the same lock.
+     * @param filePath
+     *      Path to the file.
+     * @return
+     *      Read/write lock of the file's stripe.
+     */
+    private static ReentrantReadWriteLock getLock(String filePath) {
+        int hash = Paths.get(filePath).toAbsolutePath().normalize().hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Locks a file lock and records how long it waited.
+     * @param lock
+     *      Read or write lock of a file.
+     * @return
+     *      The lock, held.
+     */
+    private static Lock acquire(Lock lock) {
+        // Reads the clock only if the lock is taken
+        if (lock.tryLock()) {
+            IoTMetrics.getInstance().recordFileLockWait(0);
+            return lock;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        IoTMetrics.getInstance().recordFileLockWait(System.nanoTime() - start);
+        return lock;
+    }
+
 
 
     // ==========================================================
@@ -113,9 +165,7 @@ public class IoTFileManager {
                                     device.getOwner().getName(), 
                                     Integer.toString(device.getDevId()),
                                     filename).toString();
-        synchronized (lock) {
-            return IoTFileManager.writeFileAsBytes(path, filebytes) < 0 ? -1 : 0;
-        }
+        return IoTFileManager.writeFileAsBytes(path, filebytes) < 0 ? -1 : 0;
     }
 
     /**
@@ -138,10 +188,7 @@ public class IoTFileManager {
                                 Integer.toString(device.getDevId()),
                                 device.getImgFileName().get()).toString();
         
-        Optional<byte[]> image;
-        synchronized(lock) {
-            image = IoTFileManager.readFileAsBytes(path);
-        }
+        Optional<byte[]> image = IoTFileManager.readFileAsBytes(path);
         if (!image.isPresent())
             return Optional.empty();
         
@@ -149,39 +196,250 @@ public class IoTFileManager {
     }
 
     /**
-     * Reads the temperature associated with the device.
+     * Opens the image associated with the device for
+     * streaming. The file is replaced atomically by new
+     * images, so an open channel always reads a whole image.
      * @return
-     *      Byte array of the image content or nothing
-     *      if the device hasn't received any image,
-     *      an exception occured during reading, the
-     *      argument is invalid or the reading isn't
-     *      a number.
+     *      Channel positioned at the start of the image or
+     *      nothing if the device hasn't received any image,
+     *      an exception occured or the argument is invalid.
      */
-    public static Optional<Float> readDeviceTemp(Device device) {
-        if (device == null)
+    public static Optional<FileChannel> openDeviceImg(Device device) {
+        if (device == null || !device.getImgFileName().isPresent())
             return Optional.empty();
-        
-        final String path = Paths.get(SERV_USERDATA.toString(), 
-                                device.getOwner().getName(), 
-                                Integer.toString(device.getDevId()),
-                                device.getTempFileName()).toString();
-        
-        Optional<byte[]> tempBytes;
-        synchronized(lock) {
-            tempBytes = IoTFileManager.readFileAsBytes(path);
+
+        final String path = getDeviceFilePath(device, device.getImgFileName().get());
+        if (!IoTFileManager.isFileAvailable(path))
+            return Optional.empty();
+
+        Lock lock = acquire(getLock(path).readLock());
+        try {
+            return Optional.of(FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+        } catch (IOException e) {
+            return Optional.empty();
+        } finally {
+            lock.unlock();
         }
-        if (!tempBytes.isPresent())
+    }
+
+    /**
+     * Creates a temporary file in the device's directory to
+     * receive a file in pieces, replacing any previous one.
+     * @param device
+     *      Device.
+     * @param filename
+     *      Name of the file being received.
+     * @return
+     *      Channel to write the file or nothing if the
+     *      arguments are invalid or an exception occured.
+     */
+    public static Optional<FileChannel> createDeviceTempFile(Device device, String filename) {
+        if (device == null || filename == null || device.getOwner() == null || device.getDevId() < 0)
             return Optional.empty();
-        
-        String tempStr = new String(tempBytes.get());
-        float temp;
+
+        File file = new File(getDeviceFilePath(device, filename) + TEMP_SUFFIX);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            return Optional.empty();
+
         try {
-            temp = Float.parseFloat(tempStr);
-        } catch (Exception e) {
+            return Optional.of(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
             return Optional.empty();
         }
-        
-        return Optional.of(temp);
+    }
+
+    /**
+     * Replaces a device file with it's temporary file
+     * created by {@link #createDeviceTempFile}.
+     * @param device
+     *      Device.
+     * @param filename
+     *      Name of the received file.
+     * @return <ul>
+     *      <li> 0 if replaced correctly;
+     *      <li> -1 if error occured while moving;
+     *      <li> -2 if the arguments are invalid;
+     */
+    public static int commitDeviceTempFile(Device device, String filename) {
+        if (device == null || filename == null || device.getOwner() == null || device.getDevId() < 0)
+            return -2;
+
+        final String path = getDeviceFilePath(device, filename);
+        Lock lock = acquire(getLock(path).writeLock());
+        try {
+            Files.move(Paths.get(path + TEMP_SUFFIX), Paths.get(path),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+        return 0;
+    }
+
+    /**
+     * Deletes the temporary file of an incomplete transfer.
+     * @param device
+     *      Device.
+     * @param filename
+     *      Name of the file that was being received.
+     */
+    public static void deleteDeviceTempFile(Device device, String filename) {
+        if (device == null || filename == null || device.getOwner() == null)
+            return;
+
+        new File(getDeviceFilePath(device, filename) + TEMP_SUFFIX).delete();
+    }
+
+    /**
+     * Appends a temperature reading to the device's log.
+     * @param device
+     *      Device.
+     * @param timestamp
+     *      Time of the reading in milliseconds since epoch.
+     * @param temperature
+     *      Temperature reading.
+     * @return <ul>
+     *      <li> 0 if appended correctly;
+     *      <li> -1 if error occured while writing;
+     *      <li> -2 if the arguments are invalid;
+     */
+    public static int appendDeviceTemp(Device device, long timestamp, float temperature) {
+        if (device == null || device.getOwner() == null || device.getDevId() < 0)
+            return -2;
+
+        return IoTTimeSeries.getInstance().append(getDeviceTempPath(device), timestamp, temperature) ? 0 : -1;
+    }
+
+    /**
+     * Appends several temperature readings to the device's
+     * log with a single write.
+     * @param device
+     *      Device.
+     * @param readings
+     *      Readings in timestamp order, none older than the
+     *      device's last reading.
+     * @return <ul>
+     *      <li> 0 if appended correctly;
+     *      <li> -1 if error occured while writing;
+     *      <li> -2 if the arguments are invalid;
+     *      <li> -3 if the readings are out of order or older
+     *      than the device's last reading;
+     */
+    public static int appendDeviceTemps(Device device, IoTReadings readings) {
+        if (device == null || readings == null || device.getOwner() == null || device.getDevId() < 0)
+            return -2;
+
+        int appended = IoTTimeSeries.getInstance().append(getDeviceTempPath(device), readings);
+        return appended == -2 ? -3 : appended;
+    }
+
+    /**
+     * Reads the latest temperature reading of the device.
+     * @return
+     *      Temperature reading or nothing if the device
+     *      hasn't sent any reading, an exception occured
+     *      during reading or the argument is invalid.
+     */
+    public static Optional<Float> readDeviceTemp(Device device) {
+        if (device == null)
+            return Optional.empty();
+
+        Optional<IoTReadings> latest = IoTTimeSeries.getInstance().latest(getDeviceTempPath(device));
+        if (!latest.isPresent())
+            return Optional.empty();
+
+        return Optional.of(latest.get().getValue(0));
+    }
+
+    /**
+     * Reads the temperature readings of the device within
+     * a time range.
+     * @param device
+     *      Device.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      Readings in the range, empty if there is none or
+     *      the arguments are invalid.
+     */
+    public static IoTReadings readDeviceTemps(Device device, long from, long to) {
+        if (device == null)
+            return new IoTReadings();
+
+        return IoTTimeSeries.getInstance().range(getDeviceTempPath(device), from, to);
+    }
+
+    /**
+     * Visits the temperature readings of the device within
+     * a time range, without keeping them in memory.
+     * @param device
+     *      Device.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @param visitor
+     *      Called with each reading, oldest first.
+     */
+    public static void scanDeviceTemps(Device device, long from, long to, IoTTimeSeries.Visitor visitor) {
+        if (device == null)
+            return;
+
+        IoTTimeSeries.getInstance().scan(getDeviceTempPath(device), from, to, visitor);
+    }
+
+    /**
+     * Reads the oldest and the newest temperature reading
+     * of the device within a time range.
+     * @param device
+     *      Device.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      The oldest and the newest reading, or nothing if
+     *      there is none or the arguments are invalid.
+     */
+    public static Optional<IoTReadings> readDeviceTempBounds(Device device, long from, long to) {
+        if (device == null)
+            return Optional.empty();
+
+        return IoTTimeSeries.getInstance().bounds(getDeviceTempPath(device), from, to);
+    }
+
+    /**
+     * Reads the most recent temperature readings of the
+     * device.
+     * @param device
+     *      Device.
+     * @param count
+     *      Maximum number of readings.
+     * @return
+     *      Up to count readings, the most recent last, empty
+     *      if there is none or the arguments are invalid.
+     */
+    public static IoTReadings readRecentDeviceTemps(Device device, int count) {
+        if (device == null)
+            return new IoTReadings();
+
+        return IoTTimeSeries.getInstance().recent(getDeviceTempPath(device), count);
+    }
+
+    private static String getDeviceTempPath(Device device) {
+        return getDeviceFilePath(device, device.getTempFileName());
+    }
+
+    private static String getDeviceFilePath(Device device, String filename) {
+        return Paths.get(SERV_USERDATA.toString(),
+                        device.getOwner().getName(),
+                        Integer.toString(device.getDevId()),
+                        filename).toString();
     }
 
 
@@ -214,17 +472,14 @@ public class IoTFileManager {
         if (!file.canRead())
             return -2;
 
-        try {
-            Scanner fileScanner = new Scanner(file);
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
                 User user = User.parseFromSerial(line);
                 if (user == null)
                     continue;
                 users.put(user.getName(), user);
             }
-
-            fileScanner.close();
         } catch (Exception e) {
             return -1;
         }
@@ -254,17 +509,14 @@ public class IoTFileManager {
         if (!file.canRead())
             return -2;
         
-        try {
-            Scanner fileScanner = new Scanner(file);
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
                 Domain user = Domain.parseFromSerial(users, devices, line);
                 if (user == null)
                     continue;
                 domains.put(user.getName(), user);
             }
-
-            fileScanner.close();
         } catch (Exception e) {
             return -1;
         }
@@ -296,17 +548,14 @@ public class IoTFileManager {
         if (!file.canRead())
             return -2;
         
-        try {
-            Scanner fileScanner = new Scanner(file);
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
                 Device device = Device.parseFromSerial(users, line);
                 if (device == null)
                     continue;
                 devices.put(device.getName(), device);
             }
-
-            fileScanner.close();
         } catch (Exception e) {
             return -1;
         }
@@ -314,6 +563,95 @@ public class IoTFileManager {
         return 0;
     }
 
+    /**
+     * Replays the mutations of the journal on top of the
+     * loaded snapshots. Replaying a mutation that is already
+     * in the snapshots has no effect, so a journal that
+     * wasn't emptied after a compaction is still valid.
+     * Will ignore lines that failed to load.
+     * @param journal
+     *      Journal to replay.
+     * @param users
+     *      Map containing users.
+     * @param devices
+     *      Map containing devices.
+     * @param domains
+     *      Map containing domains.
+     * @return <ul>
+     *      <li> Number of mutations replayed;
+     *      <li> -3 if arguments are invalid;
+     */
+    public static synchronized int loadFromJournal(IoTJournal journal, Map<String, User> users, Map<String, Device> devices, Map<String, Domain> domains) {
+        if (journal == null || users == null || devices == null || domains == null)
+            return -3;
+
+        int replayed = 0;
+        for (String line : journal.read()) {
+            String[] tokens = IoTJournal.parseLine(line);
+            if (tokens == null)
+                continue;
+
+            String record = tokens[0];
+            String payload = tokens[1];
+            if (record.equals(IoTJournal.USER)) {
+                User user = User.parseFromSerial(payload);
+                if (user == null)
+                    continue;
+                users.putIfAbsent(user.getName(), user);
+            } else if (record.equals(IoTJournal.DEVICE)) {
+                Device device = Device.parseFromSerial(users, payload);
+                if (device == null)
+                    continue;
+                Device existing = devices.putIfAbsent(device.getName(), device);
+                if (existing != null && device.getImgFileName().isPresent())
+                    existing.setImgFileName(device.getImgFileName().get());
+            } else if (record.equals(IoTJournal.DOMAIN)) {
+                Domain domain = Domain.parseFromSerial(users, devices, payload);
+                if (domain == null)
+                    continue;
+                domains.putIfAbsent(domain.getName(), domain);
+            } else if (record.equals(IoTJournal.DOMAIN_USER)) {
+                Map<String, String> params = parseParams(payload);
+                Domain domain = domains.get(params.get("DOMAIN"));
+                User user = users.get(params.get("USER"));
+                if (domain == null || user == null)
+                    continue;
+                domain.addUser(user);
+            } else if (record.equals(IoTJournal.DOMAIN_DEVICE)) {
+                Map<String, String> params = parseParams(payload);
+                Domain domain = domains.get(params.get("DOMAIN"));
+                Device device = devices.get(params.get("DEVICE"));
+                if (domain == null || device == null)
+                    continue;
+                domain.registerDevice(device);
+            } else {
+                continue;
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Parses a string with the format {Key=Value,...} into
+     * a map with the keys in upper case.
+     */
+    private static Map<String, String> parseParams(String serial) {
+        Map<String, String> params = new HashMap<>();
+        IoTSerialReader reader = new IoTSerialReader(serial);
+        if (!reader.enter('{'))
+            return params;
+
+        while (reader.next()) {
+            String key = reader.key();
+            if (key == null)
+                reader.skip();
+            else
+                params.put(key.toUpperCase(), reader.value());
+        }
+        return params;
+    }
+
     /**
      * Loads client program name from text file.
      * @return
@@ -326,25 +664,20 @@ public class IoTFileManager {
         if (!file.canRead())
             return Optional.empty();
 
-        try {
-            Scanner fileScanner = new Scanner(file);
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
                 String[] params = line.split(",");
                 for (String string : params) {
                     String[] tokens = string.split("=");
                     if (tokens.length != 2)
                         continue;
                     
-                    if (tokens[0].equalsIgnoreCase("program-name")) {
-                        fileScanner.close();
+                    if (tokens[0].equalsIgnoreCase("program-name"))
                         return Optional.of(tokens[1]);
-                    }
                 }
 
             }
-
-            fileScanner.close();
         } catch (Exception e) {
             return Optional.empty();
         }
@@ -365,10 +698,9 @@ public class IoTFileManager {
         if (!file.canRead())
             return Optional.empty();
 
-        try {
-            Scanner fileScanner = new Scanner(file);
-            while (fileScanner.hasNextLine()) {
-                String line = fileScanner.nextLine();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
                 String[] params = line.split(",");
                 for (String string : params) {
                     String[] tokens = string.split("=");
@@ -380,18 +712,14 @@ public class IoTFileManager {
                         try {
                             size = Long.parseLong(tokens[1]);
                         } catch (Exception e) {
-                            fileScanner.close();
                             return Optional.empty();
                         }
 
-                        fileScanner.close();
                         return Optional.of(size);
                     }
                 }
 
             }
-
-            fileScanner.close();
         } catch (Exception e) {
             return Optional.empty();
         }
@@ -409,8 +737,10 @@ public class IoTFileManager {
     /**
      * Writes map content to plain text file, in case file doesn't exist,
      * will create one.
-     * This method will erase the previous content in the file, to keep
-     * the content use {@link IoTFileManager#addObjectToText}.
+     * This method will replace the previous content in the file, to keep
+     * the content use {@link IoTFileManager#addObjectToText}. The content
+     * is written to a temporary file first and then moved over the old
+     * one, so a crash never leaves a half written file.
      * @param filePath
      *      Path to the text file.
      * @param objs
@@ -429,44 +759,43 @@ public class IoTFileManager {
         if (file.isDirectory())
             return -1;
 
-        synchronized (lock) {
-            // Always tries to delete the file
-            file.delete();
-            
+        File temp = new File(filePath + ".tmp");
+
+        Lock lock = acquire(getLock(filePath).writeLock());
+        try {
             // Tries to create all directories to the file
             File parent = file.getParentFile();
             if (parent != null) {
                 if (!parent.exists() && !parent.mkdirs())
                     return -1;
             }
-    
-            // Creates new file
-            try {
-                if (!file.createNewFile()) {
-                    return -1;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return -1;
-            }
-    
-            // Writes to file
-            try {
-                FileWriter fw = new FileWriter(file);
-                BufferedWriter bw = new BufferedWriter(fw);
+
+            // Writes to the temporary file
+            try (FileOutputStream fos = new FileOutputStream(temp);
+                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
                 for (IoTIParsable entry : objs) {
                     bw.write(entry.parseToSerial());
                     bw.newLine();
                 }
                 bw.flush();
-                bw.close();
+                fos.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -2;
+            }
+
+            // Replaces the previous content
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             } catch (IOException e) {
                 e.printStackTrace();
-                return -1;
+                return -2;
             }
+        } finally {
+            lock.unlock();
         }
         return 0;
-        
     }
 
     /**
@@ -490,18 +819,19 @@ public class IoTFileManager {
         if (file.isDirectory())
             return -1;
 
-        synchronized (lock) {
-            try {
-                FileWriter fw = new FileWriter(file);
-                BufferedWriter bw = new BufferedWriter(fw);
-                bw.write(obj.parseToSerial());
-                bw.newLine();
-                bw.flush();
-                bw.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return -2;
-            }
+        Lock lock = acquire(getLock(filePath).writeLock());
+        try {
+            FileWriter fw = new FileWriter(file);
+            BufferedWriter bw = new BufferedWriter(fw);
+            bw.write(obj.parseToSerial());
+            bw.newLine();
+            bw.flush();
+            bw.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -2;
+        } finally {
+            lock.unlock();
         }
         return 0;
     }
@@ -538,14 +868,15 @@ public class IoTFileManager {
                 return -2;
         }
         
-        synchronized(lock) {
-            try {
-                FileOutputStream writer = new FileOutputStream(filePath);
-                writer.write(filebytes);
-                writer.close();
-            } catch (Exception e) {
-                return -3;
-            }
+        Lock lock = acquire(getLock(filePath).writeLock());
+        try {
+            FileOutputStream writer = new FileOutputStream(filePath);
+            writer.write(filebytes);
+            writer.close();
+        } catch (Exception e) {
+            return -3;
+        } finally {
+            lock.unlock();
         }
 
         
@@ -574,12 +905,13 @@ public class IoTFileManager {
         
         File file = new File(filePath);
         byte[] bytes;
-        synchronized(lock) {
-            try {
-                bytes = Files.readAllBytes(file.toPath());
-            } catch (IOException e) {
-                return Optional.empty();
-            }
+        Lock lock = acquire(getLock(filePath).readLock());
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return Optional.empty();
+        } finally {
+            lock.unlock();
         }
         
         return Optional.of(bytes);
@@ -598,16 +930,20 @@ public class IoTFileManager {
      *      -1 if failed to write to file;
      */
     public static int writeObjectToFile(String filePath, Object object) {
-        synchronized(lock) {
-            try {
-                FileOutputStream file = new FileOutputStream(filePath);
-                ObjectOutputStream writer = new ObjectOutputStream(file);
-                writer.writeObject(object);
-                writer.close();
-                file.close();
-            } catch (Exception e) {
-                return -1;
-            }
+        if (filePath == null)
+            return -1;
+
+        Lock lock = acquire(getLock(filePath).writeLock());
+        try {
+            FileOutputStream file = new FileOutputStream(filePath);
+            ObjectOutputStream writer = new ObjectOutputStream(file);
+            writer.writeObject(object);
+            writer.close();
+            file.close();
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            lock.unlock();
         }
         return 0;
     }
@@ -620,17 +956,21 @@ public class IoTFileManager {
      *      Read object or nothing if error occured.
      */
     public static Optional<Object> readObjectFromFile(String filePath) {
+        if (filePath == null)
+            return Optional.empty();
+
         Object obj;
-        synchronized(lock) {
-            try {
-                FileInputStream file = new FileInputStream(filePath);
-                ObjectInputStream reader = new ObjectInputStream(file);
-                obj = reader.readObject();
-                reader.close();
-                file.close();
-            } catch (Exception e) {
-                return Optional.empty();
-            }
+        Lock lock = acquire(getLock(filePath).readLock());
+        try {
+            FileInputStream file = new FileInputStream(filePath);
+            ObjectInputStream reader = new ObjectInputStream(file);
+            obj = reader.readObject();
+            reader.close();
+            file.close();
+        } catch (Exception e) {
+            return Optional.empty();
+        } finally {
+            lock.unlock();
         }
         return Optional.of(obj);
     }
@@ -0,0 +1,169 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Write-ahead journal of metadata mutations.
+ * Each mutation is appended as a single line
+ * "<record> <payload>" and synced to disk before returning,
+ * so a mutation costs one small write instead of rewriting
+ * every object. The journal is emptied when its content is
+ * compacted into the snapshot files.
+ */
+public final class IoTJournal {
+
+    // Records, the payload is the serial representation of the object
+    public static final String USER = "USER";
+    public static final String DEVICE = "DEVICE";
+    public static final String DOMAIN = "DOMAIN";
+    // Payload {Domain=<name>,User=<name>}
+    public static final String DOMAIN_USER = "DOMAIN_USER";
+    // Payload {Domain=<name>,Device=<name>}
+    public static final String DOMAIN_DEVICE = "DOMAIN_DEVICE";
+
+    private static final String LINE = System.getProperty("line.separator");
+
+    private final String filePath;
+    private FileChannel channel;
+    private int size;
+
+    public IoTJournal(String filePath) {
+        this.filePath = filePath;
+        this.size = read().size();
+    }
+
+    /**
+     * Appends a mutation to the journal.
+     * @param record
+     *      Type of the mutation.
+     * @param payload
+     *      Data of the mutation, must be a single line.
+     * @return
+     *      True if the mutation is on disk, false otherwise.
+     */
+    public synchronized boolean append(String record, String payload) {
+        if (record == null || payload == null)
+            return false;
+
+        byte[] line = (record + " " + payload + LINE).getBytes(StandardCharsets.UTF_8);
+        try {
+            FileChannel channel = open();
+            ByteBuffer buffer = ByteBuffer.wrap(line);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Returns the number of mutations in the journal.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Reads every mutation in the journal.
+     * @return
+     *      List of lines, empty if the journal doesn't exist.
+     */
+    public synchronized List<String> read() {
+        List<String> lines = new ArrayList<>();
+        File file = new File(this.filePath);
+        if (!file.isFile())
+            return lines;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty())
+                    lines.add(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the snapshots and empties the journal, no
+     * mutation is appended meanwhile. If the snapshots
+     * fail the journal is kept.
+     * @param snapshot
+     *      Writes the snapshots, returns true on success.
+     * @return
+     *      True if compacted, false otherwise.
+     */
+    public synchronized boolean compact(BooleanSupplier snapshot) {
+        if (!snapshot.getAsBoolean())
+            return false;
+
+        try {
+            open().truncate(0);
+            this.channel.force(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        this.size = 0;
+        return true;
+    }
+
+    /**
+     * Closes the journal file.
+     */
+    public synchronized void close() {
+        try {
+            if (this.channel != null)
+                this.channel.close();
+        } catch (IOException e) {
+        }
+        this.channel = null;
+    }
+
+    private FileChannel open() throws IOException {
+        if (this.channel != null && this.channel.isOpen())
+            return this.channel;
+
+        File parent = new File(this.filePath).getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Failed to create " + parent);
+
+        this.channel = FileChannel.open(Paths.get(this.filePath),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return this.channel;
+    }
+
+    /**
+     * Splits a journal line into it's record and payload.
+     * @param line
+     *      Line of the journal.
+     * @return
+     *      Array with the record and the payload or null
+     *      if the line doesn't have the correct format.
+     */
+    public static String[] parseLine(String line) {
+        if (line == null)
+            return null;
+        String[] tokens = line.split(" ", 2);
+        if (tokens.length != 2)
+            return null;
+        return tokens;
+    }
+}
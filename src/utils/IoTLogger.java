@@ -0,0 +1,238 @@
+package utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger of the server.
+ * Logging threads only check the level and put the event,
+ * unformatted, in a bounded ring buffer. A single writer
+ * thread formats the events and prints them in batches,
+ * so requests never wait for the console. When the buffer
+ * is full events are dropped and counted instead.
+ * The arguments of an event are formatted later and
+ * mustn't be changed after being logged.
+ */
+public class IoTLogger {
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR;
+    }
+
+    // Must be a power of two
+    private static final int CAPACITY = 8192;
+    // Writer wait when there's nothing to print
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+    private static final DateTimeFormatter DTF =
+        DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final String LINE = System.getProperty("line.separator");
+
+    // Singleton
+    private static IoTLogger instance = null;
+
+    private volatile Level level;
+    private final PrintStream out;
+
+    // Ring buffer, sequences only grow, a slot is the sequence modulo the capacity
+    private final AtomicReferenceArray<Event> slots;
+    private final AtomicLong claimed;
+    private volatile long consumed;
+    private final LongAdder dropped;
+
+    private final Thread writer;
+    private volatile boolean running;
+
+    private IoTLogger(PrintStream out) {
+        this.level = Level.INFO;
+        this.out = out;
+        this.slots = new AtomicReferenceArray<>(CAPACITY);
+        this.claimed = new AtomicLong();
+        this.consumed = 0;
+        this.dropped = new LongAdder();
+        this.running = true;
+        this.writer = new Thread(this::drain, "iot-logger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static synchronized IoTLogger getInstance() {
+        if (instance == null)
+            instance = new IoTLogger(System.out);
+        return instance;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     * Logs an event of a session.
+     * @param level
+     *      Level of the event, nothing is done below the
+     *      logger's level.
+     * @param prefix
+     *      Source of the event, e.g. the session, or null.
+     * @param color
+     *      Color of the prefix, or null.
+     * @param template
+     *      Format of the message, as in String.format().
+     * @param args
+     *      Arguments of the template.
+     */
+    public void log(Level level, Object prefix, String color, String template, Object... args) {
+        if (!isEnabled(level) || !this.running)
+            return;
+        offer(new Event(System.currentTimeMillis(), level, prefix, color, template, args));
+    }
+
+    public void debug(Object prefix, String color, String template, Object... args) {
+        log(Level.DEBUG, prefix, color, template, args);
+    }
+
+    public void info(String template, Object... args) {
+        log(Level.INFO, null, null, template, args);
+    }
+
+    public void warn(String template, Object... args) {
+        log(Level.WARN, null, null, template, args);
+    }
+
+    public void error(String template, Object... args) {
+        log(Level.ERROR, null, null, template, args);
+    }
+
+    /**
+     * Returns the number of events dropped because
+     * the buffer was full.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Prints the events still in the buffer and stops
+     * the writer, later events are ignored.
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the next slot, unless the writer is a whole
+     * buffer behind.
+     */
+    private void offer(Event event) {
+        while (true) {
+            long sequence = this.claimed.get();
+            if (sequence - this.consumed >= CAPACITY) {
+                this.dropped.increment();
+                return;
+            }
+            if (this.claimed.compareAndSet(sequence, sequence + 1)) {
+                this.slots.set((int) (sequence & (CAPACITY - 1)), event);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writer loop, prints the events in sequence order.
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            int index = (int) (this.consumed & (CAPACITY - 1));
+            Event event = this.slots.get(index);
+            if (event != null) {
+                this.slots.set(index, null);
+                this.consumed++;
+                format(batch, event);
+                continue;
+            }
+
+            // Nothing more published, prints the batch
+            long drops = this.dropped.sum();
+            if (drops != reportedDrops) {
+                format(batch, new Event(System.currentTimeMillis(), Level.WARN, null, null,
+                    "%d log events dropped, the buffer was full", drops - reportedDrops));
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                this.out.print(batch);
+                this.out.flush();
+                batch.setLength(0);
+            }
+
+            // Also waits for slots claimed but not yet published
+            if (!this.running && this.consumed == this.claimed.get())
+                return;
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    private static void format(StringBuilder batch, Event event) {
+        batch.append(DTF.format(Instant.ofEpochMilli(event.time)))
+            .append(' ').append(event.level).append(' ');
+        if (event.prefix != null) {
+            batch.append('[');
+            if (event.color != null)
+                batch.append(event.color).append(event.prefix).append(ConsoleColors.RESET);
+            else
+                batch.append(event.prefix);
+            batch.append("] ");
+        }
+        try {
+            batch.append(event.args.length == 0 ? event.template : String.format(event.template, event.args));
+        } catch (RuntimeException e) {
+            batch.append(event.template);
+        }
+        batch.append(LINE);
+    }
+
+    /**
+     * Logged event, formatted by the writer.
+     */
+    private static class Event {
+        private final long time;
+        private final Level level;
+        private final Object prefix;
+        private final String color;
+        private final String template;
+        private final Object[] args;
+
+        private Event(long time, Level level, Object prefix, String color, String template, Object... args) {
+            this.time = time;
+            this.level = level;
+            this.prefix = prefix;
+            this.color = color;
+            this.template = template;
+            this.args = args;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package utils;
 
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 
 /**
@@ -8,13 +9,18 @@ import java.util.Map;
  */
 public class IoTMessage implements IoTMessageType, Serializable {
 
+    // Device id of requests about the device of the session, no device has it
+    public static final int OWN_DEVICE = -1;
+
     private IoTOpcodes opcode;
+
+    private int corr_id;
     
     private String userid;
         
     private String userpwd;
 
-    private int devid;
+    private int devid = OWN_DEVICE;
 
     private String program_name;
 
@@ -26,14 +32,29 @@ public class IoTMessage implements IoTMessageType, Serializable {
 
     private Map<String,Float> temps;
 
+    private IoTTemperatures temperatures;
+
+    private IoTTemperatureStats stats;
+
     private String img_name;
 
     private long img_size;
 
     private byte[] img;
 
+    private long time_from;
+
+    private long time_to;
+
+    private int count;
+
+    private IoTReadings readings;
+
     private byte[] data;
 
+    // Streamed after the message, never serialized
+    private transient FileChannel attachment;
+
     @Override
     public void setOpCode(IoTOpcodes opcode) {
         this.opcode = opcode;
@@ -44,6 +65,16 @@ public class IoTMessage implements IoTMessageType, Serializable {
         return this.opcode;
     }
 
+    @Override
+    public void setCorrelationId(int id) {
+        this.corr_id = id;
+    }
+
+    @Override
+    public int getCorrelationId() {
+        return this.corr_id;
+    }
+
     @Override
     public void setUserId(String userid) {
         this.userid = userid;
@@ -120,15 +151,37 @@ public class IoTMessage implements IoTMessageType, Serializable {
     }
 
     @Override
+    @Deprecated
     public void setTemps(Map<String,Float> temps) {
         this.temps = temps;
     }
 
     @Override
+    @Deprecated
     public Map<String,Float> getTemps() {
         return this.temps;
     }
 
+    @Override
+    public void setTemperatures(IoTTemperatures temperatures) {
+        this.temperatures = temperatures;
+    }
+
+    @Override
+    public IoTTemperatures getTemperatures() {
+        return this.temperatures;
+    }
+
+    @Override
+    public void setTemperatureStats(IoTTemperatureStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public IoTTemperatureStats getTemperatureStats() {
+        return this.stats;
+    }
+
     @Override
     public void setImageName(String name) {
         this.img_name = name;
@@ -154,6 +207,56 @@ public class IoTMessage implements IoTMessageType, Serializable {
         return this.img;
     }
 
+    @Override
+    public void setTimeFrom(long from) {
+        this.time_from = from;
+    }
+
+    @Override
+    public long getTimeFrom() {
+        return this.time_from;
+    }
+
+    @Override
+    public void setTimeTo(long to) {
+        this.time_to = to;
+    }
+
+    @Override
+    public long getTimeTo() {
+        return this.time_to;
+    }
+
+    @Override
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public void setReadings(IoTReadings readings) {
+        this.readings = readings;
+    }
+
+    @Override
+    public IoTReadings getReadings() {
+        return this.readings;
+    }
+
+    @Override
+    public void setAttachment(FileChannel attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public FileChannel getAttachment() {
+        return this.attachment;
+    }
+
     @Override
     @Deprecated
     public void setData(byte[] data) {
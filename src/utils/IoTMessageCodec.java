@@ -0,0 +1,140 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Converts messages to and from the payload of a frame.
+ * Every message travels on the wire as a 4 byte length
+ * followed by it's payload, so both the blocking
+ * {@link IoTStream} and the non-blocking server can
+ * tell where a message ends without decoding it.
+ * <p>
+ * The payload format depends on the protocol agreed when
+ * the connection is established: each peer sends one byte
+ * with the highest protocol it supports and both use the
+ * lowest of the two.
+ */
+public class IoTMessageCodec {
+
+    // Java serialization of the whole message
+    public static final byte PROTOCOL_SERIAL = 0;
+    // Compact encoding, see IoTBinaryCodec
+    public static final byte PROTOCOL_BINARY = 1;
+    // Protocol offered by this build
+    public static final byte PROTOCOL_PREFERRED = PROTOCOL_BINARY;
+
+    // Size of the length prefix of each frame
+    public static final int HEADER_SIZE = Integer.BYTES;
+
+    // Frames bigger than this are considered corrupted
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    // Bytes of a file carried by each IMAGE_CHUNK message
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private IoTMessageCodec() {
+    }
+
+    /**
+     * Chooses the protocol to use with a peer.
+     * @param offered
+     *      Protocol byte received from the peer.
+     * @return
+     *      Protocol supported by both ends.
+     */
+    public static byte negotiate(int offered) {
+        if (offered < PROTOCOL_SERIAL)
+            return PROTOCOL_SERIAL;
+        return (byte) Math.min(offered, PROTOCOL_PREFERRED);
+    }
+
+    /**
+     * Encodes an object into a frame payload.
+     * @param message
+     *      Object to be encoded.
+     * @param protocol
+     *      Protocol agreed with the peer.
+     * @return
+     *      Payload bytes or null if the object couldn't
+     *      be encoded.
+     */
+    public static byte[] encode(Object message, byte protocol) {
+        if (message == null)
+            return null;
+
+        if (protocol == PROTOCOL_BINARY) {
+            if (!(message instanceof IoTMessageType))
+                return null;
+            return IoTBinaryCodec.encode((IoTMessageType) message);
+        }
+
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream writer = new ObjectOutputStream(bytes)) {
+            writer.writeObject(message);
+            writer.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the next chunk of a file being streamed.
+     * @param source
+     *      File being streamed.
+     * @param remaining
+     *      Bytes of the file still to be sent.
+     * @return
+     *      {@link IoTOpcodes#IMAGE_CHUNK} message with up to
+     *      {@link #CHUNK_SIZE} bytes.
+     * @throws IOException
+     *      If the file ends before the expected size.
+     */
+    public static IoTMessageType nextChunk(ReadableByteChannel source, long remaining) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, remaining));
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0)
+                throw new IOException("File is shorter than announced");
+        }
+
+        IoTMessageType chunk = new IoTMessage();
+        chunk.setOpCode(IoTOpcodes.IMAGE_CHUNK);
+        chunk.setImage(buffer.array());
+        return chunk;
+    }
+
+    /**
+     * Decodes a frame payload into an object.
+     * @param payload
+     *      Buffer containing the payload.
+     * @param offset
+     *      Start of the payload in the buffer.
+     * @param length
+     *      Length of the payload.
+     * @param protocol
+     *      Protocol agreed with the peer.
+     * @return
+     *      Decoded object or null if the payload
+     *      is corrupted.
+     */
+    public static Object decode(byte[] payload, int offset, int length, byte protocol) {
+        if (payload == null || length <= 0)
+            return null;
+
+        if (protocol == PROTOCOL_BINARY)
+            return IoTBinaryCodec.decode(payload, offset, length);
+
+        try (ObjectInputStream reader = new ObjectInputStream(
+                new ByteArrayInputStream(payload, offset, length))) {
+            return reader.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
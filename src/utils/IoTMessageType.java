@@ -1,5 +1,6 @@
 package utils;
 
+import java.nio.channels.FileChannel;
 import java.util.Map;
 
 public interface IoTMessageType {
@@ -18,6 +19,16 @@ public interface IoTMessageType {
      */
     public IoTOpcodes getOpcode();
 
+    /**
+     * Sets the id that matches a response to it's request,
+     * responses carry the id of their request.
+     * @param id
+     *      Correlation id, 0 if there's none.
+     */
+    public void setCorrelationId(int id);
+
+    public int getCorrelationId();
+
     /**
      * Set the user id of the message.
      * @param userid
@@ -55,10 +66,44 @@ public interface IoTMessageType {
 
     public float getTemp();
 
+    /**
+     * Set the temperatures of the devices of a domain.
+     * @deprecated
+     *      Boxes every temperature, use
+     *      {@link IoTMessageType#setTemperatures(IoTTemperatures)}
+     *      instead!
+     */
+    @Deprecated
     public void setTemps(Map<String,Float> temps);
 
+    /**
+     * Get the temperatures of the devices of a domain.
+     * @deprecated
+     *      Boxes every temperature, use
+     *      {@link IoTMessageType#getTemperatures()} instead!
+     */
+    @Deprecated
     public Map<String,Float> getTemps();
 
+    /**
+     * Sets the latest temperature of each device of a
+     * domain.
+     * @param temperatures
+     *      Temperatures by device name.
+     */
+    public void setTemperatures(IoTTemperatures temperatures);
+
+    public IoTTemperatures getTemperatures();
+
+    /**
+     * Sets a summary of the temperatures of a domain.
+     * @param stats
+     *      Summary computed by the server.
+     */
+    public void setTemperatureStats(IoTTemperatureStats stats);
+
+    public IoTTemperatureStats getTemperatureStats();
+
     public void setImageName(String name);
 
     public String getImageName();
@@ -71,6 +116,49 @@ public interface IoTMessageType {
 
     public long getImageSize();
 
+    /**
+     * Sets the start of a time range.
+     * @param from
+     *      Milliseconds since epoch, inclusive.
+     */
+    public void setTimeFrom(long from);
+
+    public long getTimeFrom();
+
+    /**
+     * Sets the end of a time range.
+     * @param to
+     *      Milliseconds since epoch, inclusive.
+     */
+    public void setTimeTo(long to);
+
+    public long getTimeTo();
+
+    /**
+     * Sets the maximum number of readings requested.
+     * @param count
+     *      Number of readings, the most recent ones.
+     */
+    public void setCount(int count);
+
+    public int getCount();
+
+    public void setReadings(IoTReadings readings);
+
+    public IoTReadings getReadings();
+
+    /**
+     * Sets a file to be sent right after the message, as
+     * many raw bytes as the image size. It's not part of the
+     * payload, the connection sending the message transfers
+     * it straight from the file and closes it.
+     * @param attachment
+     *      Open file positioned at the first byte to send.
+     */
+    public void setAttachment(FileChannel attachment);
+
+    public FileChannel getAttachment();
+
     /**
      * Set general data.
      * Should use {@link IoTMessageType#getImage()} 
@@ -0,0 +1,222 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the server. Counters are LongAdders and
+ * latencies go to {@link IoTHistogram}s, so recording never
+ * takes a lock. The values are read as text by the metrics
+ * endpoint or through JMX.
+ * Latencies are in nanoseconds.
+ */
+public class IoTMetrics implements IoTMetricsMBean {
+
+    public static final String OBJECT_NAME = "server:type=IoTMetrics";
+    // Reported percentiles, and their labels as quantiles
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    // Singleton
+    private static IoTMetrics instance = null;
+
+    // Created for every opcode up front, never changed after
+    private final Map<IoTOpcodes, IoTHistogram> latencies;
+    private final IoTHistogram fileLockWait;
+    private final LongAdder activeSessions;
+    private final LongAdder sessions;
+    private final LongAdder queued;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    // Values read when rendered, by name
+    private final Map<String, LongSupplier> gauges;
+
+    private IoTMetrics() {
+        this.latencies = new EnumMap<>(IoTOpcodes.class);
+        for (IoTOpcodes opcode : IoTOpcodes.values())
+            this.latencies.put(opcode, new IoTHistogram());
+        this.fileLockWait = new IoTHistogram();
+        this.activeSessions = new LongAdder();
+        this.sessions = new LongAdder();
+        this.queued = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.gauges = new ConcurrentSkipListMap<>();
+    }
+
+    public static synchronized IoTMetrics getInstance() {
+        if (instance == null)
+            instance = new IoTMetrics();
+        return instance;
+    }
+
+    /**
+     * Records the time the handler took to process a request.
+     * @param opcode
+     *      Opcode of the request.
+     * @param nanos
+     *      Processing time.
+     */
+    public void recordRequest(IoTOpcodes opcode, long nanos) {
+        if (opcode != null)
+            this.latencies.get(opcode).record(nanos);
+    }
+
+    /**
+     * Records the time spent waiting for a file lock, 0 if
+     * it was free.
+     */
+    public void recordFileLockWait(long nanos) {
+        this.fileLockWait.record(nanos);
+    }
+
+    public void sessionOpened() {
+        this.sessions.increment();
+        this.activeSessions.increment();
+    }
+
+    public void sessionClosed() {
+        this.activeSessions.decrement();
+    }
+
+    /**
+     * A request waits for a worker thread.
+     */
+    public void requestQueued() {
+        this.queued.increment();
+    }
+
+    /**
+     * A worker thread started a queued request.
+     */
+    public void requestDequeued() {
+        this.queued.decrement();
+    }
+
+    public void addBytesIn(long bytes) {
+        this.bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        this.bytesOut.add(bytes);
+    }
+
+    /**
+     * Adds a value that is read when the metrics are
+     * reported, replacing the one with the same name.
+     * @param name
+     *      Name of the metric, without the iot_ prefix.
+     * @param gauge
+     *      Reads the current value.
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     * @return
+     *      True if registered, false otherwise.
+     */
+    public boolean registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return this.activeSessions.sum();
+    }
+
+    @Override
+    public long getSessions() {
+        return this.sessions.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (IoTHistogram histogram : this.latencies.values())
+            requests += histogram.getCount();
+        return requests;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    @Override
+    public long getFileLockWaits() {
+        return this.fileLockWait.getCount();
+    }
+
+    @Override
+    public long getFileLockWaitP99() {
+        return this.fileLockWait.getPercentile(99);
+    }
+
+    @Override
+    public void resetHistograms() {
+        for (IoTHistogram histogram : this.latencies.values())
+            histogram.reset();
+        this.fileLockWait.reset();
+    }
+
+    /**
+     * Renders every metric, one "name{labels} value" per
+     * line, as read by Prometheus.
+     */
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "iot_sessions_active", null, getActiveSessions());
+        line(sb, "iot_sessions_total", null, getSessions());
+        line(sb, "iot_requests_total", null, getRequests());
+        line(sb, "iot_requests_queued", null, this.queued.sum());
+        line(sb, "iot_bytes_in_total", null, getBytesIn());
+        line(sb, "iot_bytes_out_total", null, getBytesOut());
+        for (Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet())
+            line(sb, "iot_" + gauge.getKey(), null, gauge.getValue().getAsLong());
+
+        histogram(sb, "iot_file_lock_wait_ns", null, this.fileLockWait);
+        for (Map.Entry<IoTOpcodes, IoTHistogram> entry : this.latencies.entrySet()) {
+            // Only what the server received
+            if (entry.getValue().getCount() > 0)
+                histogram(sb, "iot_request_latency_ns", "opcode=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, IoTHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (int i = 0; i < PERCENTILES.length; i++)
+            line(sb, name, prefix + "quantile=\"" + QUANTILES[i] + "\"", histogram.getPercentile(PERCENTILES[i]));
+        line(sb, name + "_max", labels, histogram.getMax());
+        line(sb, name + "_sum", labels, histogram.getSum());
+        line(sb, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (labels != null)
+            sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,35 @@
+package utils;
+
+/**
+ * Management interface of {@link IoTMetrics}, read
+ * through JMX, e.g. with jconsole.
+ */
+public interface IoTMetricsMBean {
+
+    long getActiveSessions();
+
+    long getSessions();
+
+    long getRequests();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFileLockWaits();
+
+    /**
+     * 99th percentile of the file lock waits in nanoseconds.
+     */
+    long getFileLockWaitP99();
+
+    /**
+     * Every metric in the text format of the endpoint.
+     */
+    String report();
+
+    /**
+     * Forgets the latency histograms.
+     */
+    void resetHistograms();
+}
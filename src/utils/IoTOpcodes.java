@@ -8,6 +8,9 @@ public enum IoTOpcodes {
     VALIDATE_DEVICE("VALIDATE_DEVICE"), 
     VALIDATE_USER("VALIDATE_USER"), 
     VALIDATE_PROGRAM("VALIDATE_PROGRAM"),
+    // Gateways, more devices of the user in the same session
+    ATTACH_DEVICE("ATTACH_DEVICE"),
+    DETACH_DEVICE("DETACH_DEVICE"),
 
     // Server responses
     WRONG_PWD("WRONG_PWD"),
@@ -27,9 +30,19 @@ public enum IoTOpcodes {
     ADD_USER_DOMAIN("ADD_USER_DOMAIN"),
     REGISTER_DEVICE_DOMAIN("REGISTER_DEVICE_DOMAIN"),
     SEND_TEMP("SEND_TEMP"),
+    SEND_TEMP_BATCH("SEND_TEMP_BATCH"),
     SEND_IMAGE("SEND_IMAGE"),
     GET_TEMP("GET_TEMP"),
     GET_USER_IMAGE("GET_USER_IMAGE"),
+    GET_TEMP_RANGE("GET_TEMP_RANGE"),
+    GET_TEMP_RECENT("GET_TEMP_RECENT"),
+    GET_TEMP_STATS("GET_TEMP_STATS"),
+    SUBSCRIBE_TEMP("SUBSCRIBE_TEMP"),
+    UNSUBSCRIBE_TEMP("UNSUBSCRIBE_TEMP"),
+    // Piece of an image, sent by both ends
+    IMAGE_CHUNK("IMAGE_CHUNK"),
+    // Pushed by the server to sessions subscribed to a domain
+    TEMP_UPDATE("TEMP_UPDATE"),
 
     // Server responses
     OK_ACCEPTED("OK_ACCEPTED"),
@@ -0,0 +1,68 @@
+package utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Sequence of timestamped temperature readings, kept in
+ * two parallel primitive arrays so big series don't box
+ * every value.
+ */
+public class IoTReadings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] timestamps;
+    private float[] values;
+    private int size;
+
+    public IoTReadings() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IoTReadings(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.timestamps = new long[capacity];
+        this.values = new float[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Appends a reading.
+     * @param timestamp
+     *      Milliseconds since epoch.
+     * @param value
+     *      Temperature.
+     */
+    public void add(long timestamp, float value) {
+        if (this.size == this.timestamps.length) {
+            int capacity = this.size * 2;
+            this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+        }
+        this.timestamps[this.size] = timestamp;
+        this.values[this.size] = value;
+        this.size++;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public long getTimestamp(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(index);
+        return this.timestamps[index];
+    }
+
+    public float getValue(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(index);
+        return this.values[index];
+    }
+}
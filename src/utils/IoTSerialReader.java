@@ -0,0 +1,207 @@
+package utils;
+
+/**
+ * Single pass reader of the serial format of the metadata,
+ * objects {Key=Value,...} and lists [x,y,...] nested in any
+ * way. It walks the string in place, keys are matched
+ * without copying them and only the values that are read
+ * become new strings, so nested objects are read once
+ * instead of being split into substrings at every level.
+ * As in {@link IoTIParsable#separateStrByChar(char, String)},
+ * commas inside quotes or brackets don't separate values.
+ * <p>
+ * Each element of an object or list is visited with
+ * {@link #next()} and must be read or skipped before the
+ * next one:
+ * <pre>
+ *      reader.enter('{');
+ *      while (reader.next()) {
+ *          if (reader.isKey("NAME"))
+ *              name = reader.value();
+ *          else
+ *              reader.skip();
+ *      }
+ * </pre>
+ */
+public class IoTSerialReader {
+    private final String input;
+    private int position;
+
+    public IoTSerialReader(String input) {
+        this.input = input;
+        this.position = 0;
+    }
+
+    /**
+     * Enters an object or list.
+     * @param open
+     *      Opening character, '{' or '['.
+     * @return
+     *      True if the next value starts with it, false
+     *      otherwise.
+     */
+    public boolean enter(char open) {
+        skipWhitespace();
+        if (this.position < this.input.length() && this.input.charAt(this.position) == open) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next element of the current object or
+     * list, leaving it when there are no more.
+     * @return
+     *      True if there's another element, false at the
+     *      end of the object or list.
+     */
+    public boolean next() {
+        skipWhitespace();
+        if (this.position < this.input.length() && this.input.charAt(this.position) == ',') {
+            this.position++;
+            skipWhitespace();
+        }
+        if (this.position >= this.input.length())
+            return false;
+
+        char c = this.input.charAt(this.position);
+        if (c == '}' || c == ']') {
+            this.position++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the key of the current element if it's the given
+     * one, ignoring case.
+     * @param key
+     *      Expected key, in upper case.
+     * @return
+     *      True if it matched and the value follows, false
+     *      otherwise, without moving.
+     */
+    public boolean isKey(String key) {
+        int length = key.length();
+        int equals = this.position + length;
+        if (equals >= this.input.length() || this.input.charAt(equals) != '=')
+            return false;
+        if (!this.input.regionMatches(true, this.position, key, 0, length))
+            return false;
+        this.position = equals + 1;
+        return true;
+    }
+
+    /**
+     * Reads the key of the current element.
+     * @return
+     *      Key, or null if the element isn't Key=Value,
+     *      without moving.
+     */
+    public String key() {
+        int end = endOfValue();
+        int equals = this.input.indexOf('=', this.position);
+        if (equals < 0 || equals >= end)
+            return null;
+        String key = this.input.substring(this.position, equals).trim();
+        this.position = equals + 1;
+        return key;
+    }
+
+    /**
+     * Reads the current value as a string.
+     * @return
+     *      Value without the surrounding whitespace.
+     */
+    public String value() {
+        int start = this.position;
+        this.position = endOfValue();
+        return this.input.substring(start, this.position).trim();
+    }
+
+    /**
+     * Reads a reference to a user, "name:password", keeping
+     * only the name.
+     * @return
+     *      Name of the user.
+     */
+    public String name() {
+        int start = this.position;
+        this.position = endOfValue();
+        int colon = this.input.indexOf(':', start);
+        int end = colon < 0 || colon > this.position ? this.position : colon;
+        return this.input.substring(start, end).trim();
+    }
+
+    /**
+     * Reads the current value as a non negative integer.
+     * @return
+     *      Value or -1 if it isn't a non negative integer.
+     */
+    public int intValue() {
+        skipWhitespace();
+        int end = endOfValue();
+        long value = 0;
+        int digits = 0;
+        for (; this.position < end; this.position++) {
+            char c = this.input.charAt(this.position);
+            if (c < '0' || c > '9')
+                break;
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE)
+                break;
+            digits++;
+        }
+        skipWhitespace();
+        boolean valid = digits > 0 && this.position == end;
+        this.position = end;
+        return valid ? (int) value : -1;
+    }
+
+    /**
+     * Skips the current element, whatever it contains.
+     */
+    public void skip() {
+        this.position = endOfValue();
+    }
+
+    /**
+     * Finds where the current value ends, at a comma or at
+     * the end of the enclosing object or list.
+     */
+    private int endOfValue() {
+        int depth = 0;
+        // Only keeps commas in the value, names may have a lone one
+        int parentheses = 0;
+        boolean inQuotes = false;
+        int i = this.position;
+        for (; i < this.input.length(); i++) {
+            char c = this.input.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (inQuotes) {
+                continue;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0)
+                    break;
+                depth--;
+            } else if (c == '(') {
+                parentheses++;
+            } else if (c == ')') {
+                if (parentheses > 0)
+                    parentheses--;
+            } else if (c == ',' && depth == 0 && parentheses == 0) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private void skipWhitespace() {
+        while (this.position < this.input.length() && Character.isWhitespace(this.input.charAt(this.position)))
+            this.position++;
+    }
+}
@@ -0,0 +1,296 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import server.model.Device;
+import server.model.Domain;
+import server.model.User;
+
+/**
+ * Binary snapshot of the users, devices and domains.
+ * Every object is written once and referenced by it's index,
+ * so a domain costs a few integers per member instead of a
+ * copy of each member, and the whole file is loaded with
+ * one sequential pass over a memory mapping.
+ * Layout, big endian:
+ * <ul>
+ *      <li> magic "IOTS" and version;
+ *      <li> users: count, then name and password of each;
+ *      <li> devices: count, then owner index, device id and
+ *           image name (empty if none) of each;
+ *      <li> domains: count, then name, owner index, user
+ *           indexes and device indexes of each, both lists
+ *           preceded by their size;
+ *      <li> CRC32 of everything before it.
+ * </ul>
+ * Strings are their UTF-8 length followed by the bytes.
+ */
+public class IoTSnapshot {
+    private static final int MAGIC = 0x494f5453;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private IoTSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot, replacing the previous one only once
+     * the new one is fully on disk.
+     * Objects can be added while it's written, members of a
+     * domain missing from the given users or devices are
+     * added to them.
+     * @param filePath
+     *      Path to the snapshot.
+     * @return <ul>
+     *      <li> 0 if written successfully;
+     *      <li> -1 if the given path is a directory;
+     *      <li> -2 if IO error occured;
+     *      <li> -3 if arguments are invalid;
+     */
+    public static int write(String filePath, Collection<User> users, Collection<Device> devices, Collection<Domain> domains) {
+        if (filePath == null || users == null || devices == null || domains == null)
+            return -3;
+
+        File file = new File(filePath);
+        if (file.isDirectory())
+            return -1;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            return -2;
+
+        // Indexes of the objects, in the order they're written
+        List<User> userList = new ArrayList<>(users);
+        Map<User, Integer> userIndex = new HashMap<>(userList.size() * 2);
+        for (User user : userList)
+            userIndex.putIfAbsent(user, userIndex.size());
+        List<Device> deviceList = new ArrayList<>(devices);
+        Map<Device, Integer> deviceIndex = new HashMap<>(deviceList.size() * 2);
+        for (Device device : deviceList)
+            deviceIndex.putIfAbsent(device, deviceIndex.size());
+
+        List<Domain> domainList = new ArrayList<>(domains);
+        List<int[]> members = new ArrayList<>(domainList.size());
+        for (Domain domain : domainList) {
+            List<User> namespace = new ArrayList<>(domain.getNamespace());
+            List<Device> domainDevices = new ArrayList<>(domain.getDevices());
+            int[] indexes = new int[2 + namespace.size() + domainDevices.size()];
+            int i = 0;
+            indexes[i++] = namespace.size();
+            for (User user : namespace)
+                indexes[i++] = indexOf(user, userList, userIndex);
+            indexes[i++] = domainDevices.size();
+            for (Device device : domainDevices) {
+                indexOf(device.getOwner(), userList, userIndex);
+                indexes[i++] = indexOf(device, deviceList, deviceIndex);
+            }
+            indexOf(domain.getOwner(), userList, userIndex);
+            members.add(indexes);
+        }
+        for (Device device : deviceList)
+            indexOf(device.getOwner(), userList, userIndex);
+
+        File temp = new File(filePath + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(fos, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(userList.size());
+            for (User user : userList) {
+                writeString(out, user.getName());
+                writeString(out, user.getPassword());
+            }
+
+            out.writeInt(deviceList.size());
+            for (Device device : deviceList) {
+                out.writeInt(userIndex.get(device.getOwner()));
+                out.writeInt(device.getDevId());
+                writeString(out, device.getImgFileName().orElse(""));
+            }
+
+            out.writeInt(domainList.size());
+            for (int d = 0; d < domainList.size(); d++) {
+                Domain domain = domainList.get(d);
+                writeString(out, domain.getName());
+                out.writeInt(userIndex.get(domain.getOwner()));
+                for (int index : members.get(d))
+                    out.writeInt(index);
+            }
+            out.flush();
+
+            // Outside of the checksum
+            new DataOutputStream(fos).writeLong(checked.getChecksum().getValue());
+            fos.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -2;
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -2;
+        }
+        return 0;
+    }
+
+    /**
+     * Loads a snapshot into the given maps, which are only
+     * changed if the whole snapshot is valid.
+     * @param filePath
+     *      Path to the snapshot.
+     * @return <ul>
+     *      <li> 0 if loaded successfully;
+     *      <li> -1 if file doesn't exist;
+     *      <li> -2 if IO error occured;
+     *      <li> -3 if arguments are invalid;
+     *      <li> -4 if the snapshot is corrupted;
+     */
+    public static int load(String filePath, Map<String, User> users, Map<String, Device> devices, Map<String, Domain> domains) {
+        if (filePath == null || users == null || devices == null || domains == null)
+            return -3;
+
+        File file = new File(filePath);
+        if (!file.isFile())
+            return -1;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // Content and checksum, a mapping holds up to 2 GiB
+            if (size < 5 * Integer.BYTES + Long.BYTES || size > Integer.MAX_VALUE)
+                return -4;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, (int) size - Long.BYTES));
+            if (crc.getValue() != buffer.getLong((int) size - Long.BYTES))
+                return -4;
+            buffer.limit((int) size - Long.BYTES);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return -4;
+            return read(buffer, users, devices, domains) ? 0 : -4;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -2;
+        }
+    }
+
+    /**
+     * Reads the objects after the header, in order.
+     * @return
+     *      True if every reference is valid, false otherwise.
+     */
+    private static boolean read(ByteBuffer buffer, Map<String, User> users, Map<String, Device> devices, Map<String, Domain> domains) {
+        Input in = new Input(buffer);
+        try {
+            User[] userArray = new User[in.count(2 * Integer.BYTES)];
+            for (int i = 0; i < userArray.length; i++)
+                userArray[i] = new User(in.string(), in.string());
+
+            Device[] deviceArray = new Device[in.count(3 * Integer.BYTES)];
+            for (int i = 0; i < deviceArray.length; i++) {
+                Device device = new Device(userArray[buffer.getInt()], buffer.getInt());
+                String image = in.string();
+                if (!image.isEmpty())
+                    device.setImgFileName(image);
+                deviceArray[i] = device;
+            }
+
+            Domain[] domainArray = new Domain[in.count(4 * Integer.BYTES)];
+            for (int i = 0; i < domainArray.length; i++) {
+                Domain domain = new Domain(in.string(), userArray[buffer.getInt()]);
+                for (int n = in.count(Integer.BYTES); n > 0; n--)
+                    domain.addUser(userArray[buffer.getInt()]);
+                for (int n = in.count(Integer.BYTES); n > 0; n--)
+                    domain.registerDevice(deviceArray[buffer.getInt()]);
+                domainArray[i] = domain;
+            }
+            if (buffer.hasRemaining())
+                return false;
+
+            for (User user : userArray)
+                users.put(user.getName(), user);
+            for (Device device : deviceArray)
+                devices.put(device.getName(), device);
+            for (Domain domain : domainArray)
+                domains.put(domain.getName(), domain);
+            return true;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static <T> int indexOf(T object, List<T> list, Map<T, Integer> indexes) {
+        Integer index = indexes.get(object);
+        if (index != null)
+            return index;
+        indexes.put(object, list.size());
+        list.add(object);
+        return list.size() - 1;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads sizes and strings, checking them against the
+     * bytes left so a corrupted size can't allocate more
+     * than the file.
+     */
+    private static class Input {
+        private final ByteBuffer buffer;
+        // Reused for every string
+        private byte[] scratch = new byte[256];
+
+        private Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Reads the size of a list, which can't have more
+         * elements than bytes left for them.
+         */
+        private int count(int minBytes) {
+            int count = this.buffer.getInt();
+            if (count < 0 || count > this.buffer.remaining() / minBytes)
+                throw new IllegalArgumentException("Invalid count " + count);
+            return count;
+        }
+
+        private String string() {
+            int length = this.buffer.getInt();
+            if (length < 0 || length > this.buffer.remaining())
+                throw new IllegalArgumentException("Invalid length " + length);
+            if (length > this.scratch.length)
+                this.scratch = new byte[length];
+            this.buffer.get(this.scratch, 0, length);
+            return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -1,27 +1,50 @@
 package utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 public class IoTStream {
     public Boolean ready = false;
     private Socket socket;
-    private ObjectOutputStream outputStream;
-    private ObjectInputStream inputStream;
+    private DataOutputStream outputStream;
+    private DataInputStream inputStream;
+    // Payload format agreed with the peer
+    private byte protocol = IoTMessageCodec.PROTOCOL_SERIAL;
 
     public IoTStream(Socket socket) {
         this.socket = socket;
         try {
-            this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-            this.inputStream = new ObjectInputStream(socket.getInputStream());
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Both ends offer their protocol before reading the other's
+            this.outputStream.writeByte(IoTMessageCodec.PROTOCOL_PREFERRED);
+            this.outputStream.flush();
+            this.protocol = IoTMessageCodec.negotiate(this.inputStream.readByte());
             this.ready = true;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the protocol agreed with the peer.
+     * @return
+     *      One of the protocol constants of {@link IoTMessageCodec}.
+     */
+    public byte getProtocol() {
+        return this.protocol;
+    }
+
     /**
      * Checks if the socket is open.
      * @return
@@ -40,8 +63,8 @@ public class IoTStream {
             if (this.outputStream != null) {
                 this.outputStream.close();
             }
-            if (this.outputStream != null) {
-                this.outputStream.close();
+            if (this.inputStream != null) {
+                this.inputStream.close();
             }
             if (this.socket != null && !this.socket.isClosed()) {
                 this.socket.close();
@@ -52,7 +75,8 @@ public class IoTStream {
     }
 
     /**
-     * Writes an object to the socket.
+     * Writes an object to the socket as a single
+     * length prefixed frame.
      * @param message
      *      Object to be sent through socket.
      * @return
@@ -60,10 +84,16 @@ public class IoTStream {
      *      False if exception occured;
      */
     public Boolean write(Object message) {
+        byte[] payload = IoTMessageCodec.encode(message, this.protocol);
+        if (payload == null)
+            return false;
+
         Boolean success = false;
         try {
-            this.outputStream.writeObject(message);
+            this.outputStream.writeInt(payload.length);
+            this.outputStream.write(payload);
             this.outputStream.flush();
+            IoTMetrics.getInstance().addBytesOut(Integer.BYTES + payload.length);
             success = true;
         } catch (IOException e) {
         }
@@ -71,6 +101,126 @@ public class IoTStream {
         return success;
     }
 
+    /**
+     * Streams a file as {@link IoTOpcodes#IMAGE_CHUNK}
+     * messages, holding a single chunk in memory.
+     * @param source
+     *      File to be sent.
+     * @param size
+     *      Number of bytes to send.
+     * @return
+     *      True if every chunk was sent;
+     *      False if exception occured;
+     */
+    public Boolean writeChunks(ReadableByteChannel source, long size) {
+        return writeChunks(source, size, 0);
+    }
+
+    /**
+     * Streams a file as {@link IoTOpcodes#IMAGE_CHUNK}
+     * messages tagged with the correlation id of the
+     * request they belong to.
+     * @param source
+     *      File to be sent.
+     * @param size
+     *      Number of bytes to send.
+     * @param correlationId
+     *      Correlation id of the request.
+     * @return
+     *      True if every chunk was sent;
+     *      False if exception occured;
+     */
+    public Boolean writeChunks(ReadableByteChannel source, long size, int correlationId) {
+        long remaining = size;
+        try {
+            while (remaining > 0) {
+                IoTMessageType chunk = IoTMessageCodec.nextChunk(source, remaining);
+                chunk.setCorrelationId(correlationId);
+                if (!write(chunk))
+                    return false;
+                remaining -= chunk.getImage().length;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the bytes of a file right after the previous
+     * message, without framing. Sockets accepted through a
+     * channel send it with {@link FileChannel#transferTo},
+     * so the file isn't copied into the heap.
+     * @param source
+     *      File to be sent.
+     * @param size
+     *      Number of bytes to send, from the current position.
+     * @return
+     *      True if every byte was sent;
+     *      False if exception occured;
+     */
+    public Boolean writeFile(FileChannel source, long size) {
+        try {
+            this.outputStream.flush();
+            SocketChannel channel = this.socket.getChannel();
+            long position = source.position();
+            long remaining = size;
+            while (remaining > 0) {
+                long sent = 0;
+                if (channel != null)
+                    sent = source.transferTo(position, remaining, channel);
+                // Without a channel, or if the transfer would block, as
+                // virtual threads' sockets are non-blocking underneath,
+                // copies a chunk instead
+                if (sent == 0) {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(IoTMessageCodec.CHUNK_SIZE, remaining));
+                    sent = source.read(buffer, position);
+                    if (sent <= 0)
+                        return false;
+                    this.outputStream.write(buffer.array(), 0, (int) sent);
+                    this.outputStream.flush();
+                }
+                position += sent;
+                remaining -= sent;
+                IoTMetrics.getInstance().addBytesOut(sent);
+            }
+            this.outputStream.flush();
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Receives a file sent with {@link #writeFile}.
+     * @param target
+     *      Where the received bytes are written.
+     * @param size
+     *      Number of bytes to receive.
+     * @return
+     *      True if every byte was received;
+     *      False if the connection ended or exception occured;
+     */
+    public Boolean readFile(FileChannel target, long size) {
+        // Reads through the buffered stream, it may hold the first bytes
+        ReadableByteChannel source = Channels.newChannel(this.inputStream);
+        try {
+            long position = target.position();
+            long remaining = size;
+            while (remaining > 0) {
+                long received = target.transferFrom(source, position, Math.min(IoTMessageCodec.CHUNK_SIZE, remaining));
+                if (received <= 0)
+                    return false;
+                position += received;
+                remaining -= received;
+                IoTMetrics.getInstance().addBytesIn(received);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Reads an object from socket.
      * @return
@@ -79,7 +229,14 @@ public class IoTStream {
     public Object read() {
         Object object = null;
         try {
-            object = this.inputStream.readObject();
+            int length = this.inputStream.readInt();
+            if (length <= 0 || length > IoTMessageCodec.MAX_FRAME_SIZE)
+                return null;
+
+            byte[] payload = new byte[length];
+            this.inputStream.readFully(payload);
+            IoTMetrics.getInstance().addBytesIn(Integer.BYTES + length);
+            object = IoTMessageCodec.decode(payload, 0, length, this.protocol);
         } catch (Exception e) {
         }
 
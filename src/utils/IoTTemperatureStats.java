@@ -0,0 +1,302 @@
+package utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Summary of the temperature readings of a domain within
+ * a time range, computed by the server so only a few
+ * numbers travel instead of every reading: count, minimum,
+ * maximum, mean, some percentiles and optionally the mean
+ * of each of a number of time buckets, enough to draw the
+ * readings as a line.
+ */
+public class IoTTemperatureStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Percentiles computed by of(IoTReadings, int)
+    public static final double[] PERCENTILES = {50, 90, 99};
+    // Most buckets a summary can be split in
+    public static final int MAX_BUCKETS = 10000;
+
+    private final long count;
+    private final float min;
+    private final float max;
+    private final double mean;
+    private final double[] levels;
+    private final float[] percentiles;
+    private final IoTReadings buckets;
+
+    /**
+     * @param levels
+     *      Percentiles computed, between 0 and 100.
+     * @param percentiles
+     *      Value of each of the levels.
+     * @param buckets
+     *      Start of each bucket and the mean of it's
+     *      readings, empty buckets left out.
+     */
+    public IoTTemperatureStats(long count, float min, float max, double mean,
+            double[] levels, float[] percentiles, IoTReadings buckets) {
+        if (levels.length != percentiles.length)
+            throw new IllegalArgumentException("A value is needed for each percentile");
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.levels = levels;
+        this.percentiles = percentiles;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Summarizes readings.
+     * @param readings
+     *      Readings in any order, e.g. of several devices.
+     * @param buckets
+     *      Number of time buckets between the oldest and the
+     *      newest reading, 0 for none.
+     * @return
+     *      Summary of the readings, or null if there are no
+     *      readings or the number of buckets is invalid.
+     */
+    public static IoTTemperatureStats of(IoTReadings readings, int buckets) {
+        if (readings == null || readings.isEmpty() || buckets < 0 || buckets > MAX_BUCKETS)
+            return null;
+
+        long oldest = Long.MAX_VALUE, newest = Long.MIN_VALUE;
+        for (int i = 0; i < readings.size(); i++) {
+            oldest = Math.min(oldest, readings.getTimestamp(i));
+            newest = Math.max(newest, readings.getTimestamp(i));
+        }
+
+        Builder builder = new Builder(oldest, newest, buckets);
+        for (int i = 0; i < readings.size(); i++)
+            builder.add(readings.getTimestamp(i), readings.getValue(i));
+        return builder.build();
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public float getMin() {
+        return this.min;
+    }
+
+    public float getMax() {
+        return this.max;
+    }
+
+    public double getMean() {
+        return this.mean;
+    }
+
+    /**
+     * Get the percentiles computed, between 0 and 100.
+     */
+    public double[] getPercentileLevels() {
+        return this.levels.clone();
+    }
+
+    /**
+     * Get a percentile of the readings.
+     * @param percentile
+     *      One of the percentiles computed, e.g. 99.
+     * @return
+     *      Value of the percentile.
+     * @throws IllegalArgumentException
+     *      If the percentile wasn't computed.
+     */
+    public float getPercentile(double percentile) {
+        for (int i = 0; i < this.levels.length; i++) {
+            if (this.levels[i] == percentile)
+                return this.percentiles[i];
+        }
+        throw new IllegalArgumentException("Percentile " + percentile + " wasn't computed");
+    }
+
+    /**
+     * Get the mean of each time bucket.
+     * @return
+     *      Start of each bucket in milliseconds since epoch
+     *      and the mean of it's readings, empty buckets left
+     *      out.
+     */
+    public IoTReadings getBuckets() {
+        return this.buckets;
+    }
+
+    /**
+     * Summarizes readings as they're added, in any order,
+     * without keeping them: the memory used doesn't depend
+     * on the number of readings. Percentiles are exact up
+     * to EXACT_LIMIT readings, above it they're the upper
+     * bound of the histogram bin holding them, bins are
+     * log-linear so that's within 0.4% of the exact one
+     * however far apart the values are.
+     * Readings that aren't a number or infinite are left
+     * out, they would spoil the mean.
+     */
+    public static class Builder {
+
+        // Readings whose percentiles are computed exactly
+        private static final int EXACT_LIMIT = 4096;
+        // Low bits of a value dropped for it's bin, keeping 8 bits of the mantissa
+        private static final int BIN_SHIFT = 15;
+
+        private final long oldest;
+        private final long width;
+        private final double[] sums;
+        private final long[] counts;
+
+        private long count = 0;
+        private float min = Float.POSITIVE_INFINITY;
+        private float max = Float.NEGATIVE_INFINITY;
+        private double sum = 0;
+
+        // Values while there are at most EXACT_LIMIT of them
+        private float[] values = new float[64];
+        // Histogram of the values afterwards, from bin offset
+        // on, only the bins between the lowest and the highest
+        // value are kept
+        private long[] bins = null;
+        private int offset;
+
+        /**
+         * @param oldest
+         *      Timestamp of the oldest reading.
+         * @param newest
+         *      Timestamp of the newest reading, readings out
+         *      of the range count in the first or last bucket.
+         * @param buckets
+         *      Number of time buckets, 0 for none.
+         * @throws IllegalArgumentException
+         *      If the number of buckets is invalid.
+         */
+        public Builder(long oldest, long newest, int buckets) {
+            if (buckets < 0 || buckets > MAX_BUCKETS)
+                throw new IllegalArgumentException("Invalid number of buckets: " + buckets);
+            this.oldest = oldest;
+            // The newest reading falls in the last bucket
+            this.width = buckets > 0 ? Math.max(newest - oldest, 0) / buckets + 1 : 1;
+            this.sums = new double[buckets];
+            this.counts = new long[buckets];
+        }
+
+        /**
+         * Adds a reading.
+         * @param timestamp
+         *      Milliseconds since epoch.
+         * @param value
+         *      Temperature.
+         */
+        public void add(long timestamp, float value) {
+            if (!Float.isFinite(value))
+                return;
+
+            if (this.counts.length > 0) {
+                long bucket = Math.floorDiv(timestamp - this.oldest, this.width);
+                int i = (int) Math.max(0, Math.min(bucket, this.counts.length - 1));
+                this.sums[i] += value;
+                this.counts[i]++;
+            }
+
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            this.sum += value;
+
+            if (this.values != null) {
+                if (this.count < EXACT_LIMIT) {
+                    if (this.count == this.values.length)
+                        this.values = Arrays.copyOf(this.values, this.values.length * 2);
+                    this.values[(int) this.count++] = value;
+                    return;
+                }
+                for (int i = 0; i < this.count; i++)
+                    count(this.values[i]);
+                this.values = null;
+            }
+            count(value);
+            this.count++;
+        }
+
+        /**
+         * Get the summary of the readings added.
+         * @return
+         *      Summary, or null if no reading was added.
+         */
+        public IoTTemperatureStats build() {
+            if (this.count == 0)
+                return null;
+
+            float[] percentiles = new float[PERCENTILES.length];
+            if (this.values != null) {
+                float[] sorted = Arrays.copyOf(this.values, (int) this.count);
+                Arrays.sort(sorted);
+                // Nearest rank
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    long rank = (long) Math.ceil(PERCENTILES[i] / 100 * this.count);
+                    percentiles[i] = sorted[(int) Math.max(rank, 1) - 1];
+                }
+            } else {
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    long rank = Math.max((long) Math.ceil(PERCENTILES[i] / 100 * this.count), 1);
+                    percentiles[i] = percentile(rank);
+                }
+            }
+
+            IoTReadings means = new IoTReadings(this.counts.length);
+            for (int i = 0; i < this.counts.length; i++) {
+                if (this.counts[i] > 0)
+                    means.add(this.oldest + i * this.width, (float) (this.sums[i] / this.counts[i]));
+            }
+
+            return new IoTTemperatureStats(this.count, this.min, this.max, this.sum / this.count,
+                PERCENTILES.clone(), percentiles, means);
+        }
+
+        // Upper bound of the bin holding a rank, within the values added
+        private float percentile(long rank) {
+            long seen = 0;
+            for (int i = 0; i < this.bins.length; i++) {
+                seen += this.bins[i];
+                if (seen >= rank) {
+                    float value = value((this.offset + i + 1) << BIN_SHIFT);
+                    return Math.max(this.min, Math.min(value, this.max));
+                }
+            }
+            return this.max;
+        }
+
+        private void count(float value) {
+            int bin = key(value) >> BIN_SHIFT;
+            if (this.bins == null) {
+                this.bins = new long[16];
+                this.offset = bin;
+            } else if (bin < this.offset || bin >= this.offset + this.bins.length) {
+                int low = Math.min(this.offset, bin);
+                int high = Math.max(this.offset + this.bins.length - 1, bin);
+                // There are at most 2^(32 - BIN_SHIFT) bins
+                int length = Math.min(this.bins.length * 2, 1 << (32 - BIN_SHIFT));
+                long[] grown = new long[Math.max(high - low + 1, length)];
+                int start = bin < this.offset ? high - grown.length + 1 : low;
+                System.arraycopy(this.bins, 0, grown, this.offset - start, this.bins.length);
+                this.bins = grown;
+                this.offset = start;
+            }
+            this.bins[bin - this.offset]++;
+        }
+
+        // Bits of a value ordered like the values
+        private static int key(float value) {
+            int bits = Float.floatToIntBits(value);
+            return bits < 0 ? bits ^ Integer.MAX_VALUE : bits;
+        }
+
+        private static float value(int key) {
+            return Float.intBitsToFloat(key < 0 ? key ^ Integer.MAX_VALUE : key);
+        }
+    }
+}
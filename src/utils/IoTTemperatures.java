@@ -0,0 +1,70 @@
+package utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Latest temperature of each device of a domain, kept in
+ * two parallel arrays: the names of the devices, the same
+ * strings the devices already hold, and the temperatures
+ * as primitives, so a big domain doesn't box every value
+ * or build a map on every request.
+ */
+public class IoTTemperatures implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private String[] devices;
+    private float[] values;
+    private int size;
+
+    public IoTTemperatures() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IoTTemperatures(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.devices = new String[capacity];
+        this.values = new float[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Appends the temperature of a device.
+     * @param device
+     *      Name of the device, "user:devId".
+     * @param value
+     *      Temperature.
+     */
+    public void add(String device, float value) {
+        if (this.size == this.devices.length) {
+            int capacity = this.size * 2;
+            this.devices = Arrays.copyOf(this.devices, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+        }
+        this.devices[this.size] = device;
+        this.values[this.size] = value;
+        this.size++;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public String getDevice(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(index);
+        return this.devices[index];
+    }
+
+    public float getValue(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(index);
+        return this.values[index];
+    }
+}
@@ -0,0 +1,690 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only storage of temperature readings.
+ * Each log is a sequence of fixed-width records, a timestamp
+ * in milliseconds followed by the temperature, in timestamp
+ * order. Appends go to an open channel and are synced to
+ * disk periodically in batches instead of once per reading.
+ * <p>
+ * Next to each log there's a ring with it's most recent
+ * readings, a page mapped in memory while the log is open.
+ * Appends copy the readings into it and the recent readings,
+ * or a time range that the ring still covers, are read from
+ * it without touching the log. A ring that doesn't match
+ * it's log, e.g. after a crash, is rebuilt from the log.
+ */
+public class IoTTimeSeries {
+
+    // long timestamp + float temperature
+    public static final int RECORD_SIZE = Long.BYTES + Float.BYTES;
+
+    // Suffix of the ring of a log
+    public static final String RECENT_SUFFIX = ".recent";
+    // Magic, capacity and number of readings ever appended
+    private static final int RECENT_HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    // Readings in a ring, so it fits in a page
+    public static final int RECENT_CAPACITY = (4096 - RECENT_HEADER_SIZE) / RECORD_SIZE;
+    private static final int RECENT_MAGIC = 0x494f5452;
+
+    private static final long SYNC_INTERVAL_MS = 1000;
+    // Logs kept open for appending, the least used are closed
+    private static final int MAX_OPEN_LOGS = 1024;
+
+    // Singleton
+    private static IoTTimeSeries instance = null;
+
+    private final Map<String, Log> logs;
+    private final ScheduledExecutorService syncer;
+
+    private IoTTimeSeries() {
+        this.logs = new LinkedHashMap<>(16, 0.75f, true);
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "iot-timeseries-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncer.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized IoTTimeSeries getInstance() {
+        if (instance == null)
+            instance = new IoTTimeSeries();
+        return instance;
+    }
+
+    /**
+     * Appends a reading to a log, creating it and all
+     * necessary folders if needed.
+     * @param filePath
+     *      Path to the log.
+     * @param timestamp
+     *      Milliseconds since epoch, readings older than the
+     *      last one are stored with the last timestamp to keep
+     *      the log ordered.
+     * @param value
+     *      Temperature.
+     * @return
+     *      True if appended, false otherwise.
+     */
+    public boolean append(String filePath, long timestamp, float value) {
+        IoTReadings readings = new IoTReadings(1);
+        readings.add(timestamp, value);
+        return append(filePath, readings, true) == 0;
+    }
+
+    /**
+     * Appends several readings to a log with a single write.
+     * Unlike a single reading, their timestamps are kept as
+     * they are, so they must follow the ones in the log.
+     * @param filePath
+     *      Path to the log.
+     * @param readings
+     *      Readings in timestamp order, none older than the
+     *      last one of the log.
+     * @return <ul>
+     *      <li> 0 if appended;
+     *      <li> -1 if error occured while writing;
+     *      <li> -2 if the readings are out of order or older
+     *      than the last one of the log;
+     */
+    public int append(String filePath, IoTReadings readings) {
+        return append(filePath, readings, false);
+    }
+
+    // Readings out of order are refused or, if clamped, stored with the last timestamp
+    private int append(String filePath, IoTReadings readings, boolean clamp) {
+        if (filePath == null || readings == null)
+            return -1;
+        if (readings.isEmpty())
+            return 0;
+
+        if (!clamp) {
+            for (int i = 1; i < readings.size(); i++) {
+                if (readings.getTimestamp(i) < readings.getTimestamp(i - 1))
+                    return -2;
+            }
+        }
+
+        while (true) {
+            Log log = open(filePath);
+            if (log == null)
+                return -1;
+
+            log.lock.lock();
+            try {
+                if (!log.isOpen())
+                    // Closed by eviction, open again
+                    continue;
+                if (!clamp && readings.getTimestamp(0) < log.lastTimestamp)
+                    return -2;
+
+                ByteBuffer buffer = ByteBuffer.allocate(readings.size() * RECORD_SIZE);
+                long last = log.lastTimestamp;
+                for (int i = 0; i < readings.size(); i++) {
+                    last = Math.max(last, readings.getTimestamp(i));
+                    buffer.putLong(last).putFloat(readings.getValue(i));
+                }
+                buffer.flip();
+
+                try {
+                    while (buffer.hasRemaining())
+                        log.channel.write(buffer);
+                } catch (ClosedChannelException e) {
+                    continue;
+                } catch (IOException e) {
+                    // Rebuilt from the log when opened again
+                    log.recent = null;
+                    return -1;
+                }
+                log.lastTimestamp = last;
+                log.records += readings.size();
+                log.dirty = true;
+                if (log.recent != null)
+                    log.remember(buffer.flip());
+                return 0;
+            } finally {
+                log.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads the most recent reading of a log.
+     * @param filePath
+     *      Path to the log.
+     * @return
+     *      Readings with a single element or nothing if
+     *      the log doesn't exist or is empty.
+     */
+    public Optional<IoTReadings> latest(String filePath) {
+        if (filePath == null)
+            return Optional.empty();
+
+        File file = new File(filePath);
+        if (!file.isFile())
+            return Optional.empty();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = channel.size() / RECORD_SIZE;
+            if (records == 0)
+                return Optional.empty();
+
+            ByteBuffer buffer = readRecord(channel, records - 1);
+            IoTReadings readings = new IoTReadings(1);
+            readings.add(buffer.getLong(), buffer.getFloat());
+            return Optional.of(readings);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads the most recent readings of a log.
+     * @param filePath
+     *      Path to the log.
+     * @param count
+     *      Maximum number of readings.
+     * @return
+     *      Up to count readings, the most recent last, empty
+     *      if the log doesn't exist or an error occured.
+     */
+    public IoTReadings recent(String filePath, int count) {
+        if (filePath == null || count <= 0 || !new File(filePath).isFile())
+            return new IoTReadings();
+
+        while (true) {
+            Log log = open(filePath);
+            if (log == null)
+                return new IoTReadings();
+
+            log.lock.lock();
+            try {
+                if (!log.isOpen())
+                    continue;
+                int size = (int) Math.min(count, log.records);
+                if (log.recent != null && size <= RECENT_CAPACITY)
+                    return log.latest(size);
+            } finally {
+                log.lock.unlock();
+            }
+
+            // Older than the ring or it couldn't be mapped
+            try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                long records = channel.size() / RECORD_SIZE;
+                return readRecords(channel, Math.max(0, records - count), records);
+            } catch (IOException e) {
+                return new IoTReadings();
+            }
+        }
+    }
+
+    /**
+     * Reads the readings of a log within a time range.
+     * @param filePath
+     *      Path to the log.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      Readings in the range, empty if the log
+     *      doesn't exist or an error occured.
+     */
+    public IoTReadings range(String filePath, long from, long to) {
+        IoTReadings readings = new IoTReadings();
+        scan(filePath, from, to, readings::add);
+        return readings;
+    }
+
+    /**
+     * Visits the readings of a log within a time range, in
+     * timestamp order, without keeping them in memory.
+     * @param filePath
+     *      Path to the log.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @param visitor
+     *      Called with each reading.
+     * @return
+     *      True if the log was read, false if it doesn't
+     *      exist or an error occured.
+     */
+    public boolean scan(String filePath, long from, long to, Visitor visitor) {
+        if (filePath == null || visitor == null || from > to)
+            return false;
+
+        File file = new File(filePath);
+        if (!file.isFile())
+            return false;
+
+        while (true) {
+            Log log = open(filePath);
+            if (log == null)
+                return false;
+
+            log.lock.lock();
+            try {
+                if (!log.isOpen())
+                    continue;
+                if (log.recent != null && log.covers(from)) {
+                    log.within(from, to, visitor);
+                    return true;
+                }
+            } finally {
+                log.lock.unlock();
+            }
+            break;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = channel.size() / RECORD_SIZE;
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+            long position = firstNotBefore(channel, records, from) * RECORD_SIZE;
+            long end = records * RECORD_SIZE;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0)
+                        return true;
+                }
+                position += buffer.position();
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long timestamp = buffer.getLong();
+                    float value = buffer.getFloat();
+                    if (timestamp > to)
+                        return true;
+                    visitor.accept(timestamp, value);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the oldest and the newest reading of a log
+     * within a time range, without reading the ones between.
+     * @param filePath
+     *      Path to the log.
+     * @param from
+     *      Start of the range in milliseconds, inclusive.
+     * @param to
+     *      End of the range in milliseconds, inclusive.
+     * @return
+     *      Readings with the oldest and the newest, the same
+     *      one twice if it's the only one, or nothing if the
+     *      range has none or an error occured.
+     */
+    public Optional<IoTReadings> bounds(String filePath, long from, long to) {
+        if (filePath == null || from > to)
+            return Optional.empty();
+
+        File file = new File(filePath);
+        if (!file.isFile())
+            return Optional.empty();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = channel.size() / RECORD_SIZE;
+            long first = firstNotBefore(channel, records, from);
+            long end = to == Long.MAX_VALUE ? records : firstNotBefore(channel, records, to + 1);
+            if (first >= end)
+                return Optional.empty();
+
+            IoTReadings readings = new IoTReadings(2);
+            ByteBuffer oldest = readRecord(channel, first);
+            readings.add(oldest.getLong(), oldest.getFloat());
+            ByteBuffer newest = readRecord(channel, end - 1);
+            readings.add(newest.getLong(), newest.getFloat());
+            return Optional.of(readings);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Syncs and closes every open log.
+     */
+    public void close() {
+        this.syncer.shutdownNow();
+        List<Log> open;
+        synchronized (this.logs) {
+            open = new ArrayList<>(this.logs.values());
+            this.logs.clear();
+        }
+        for (Log log : open)
+            closeLog(log);
+    }
+
+    /**
+     * Gets the open log of a file, opening it if necessary.
+     * The map only holds the log while it's opened, files are
+     * opened and closed outside of it's lock so a slow file
+     * doesn't hold back the appends of every other log. The
+     * log is locked until it's opened, other threads using
+     * it wait for it and then check if it's open.
+     */
+    private Log open(String filePath) {
+        Log log = new Log();
+        List<Log> evicted;
+        boolean loaded;
+        log.lock.lock();
+        try {
+            synchronized (this.logs) {
+                Log current = this.logs.get(filePath);
+                if (current != null && (current.channel == null || current.channel.isOpen()))
+                    return current;
+                this.logs.put(filePath, log);
+                evicted = evict();
+            }
+
+            loaded = load(filePath, log);
+            if (!loaded) {
+                synchronized (this.logs) {
+                    this.logs.remove(filePath, log);
+                }
+            }
+        } finally {
+            log.lock.unlock();
+        }
+
+        for (Log old : evicted)
+            closeLog(old);
+        return loaded ? log : null;
+    }
+
+    /**
+     * Opens the files of a log.
+     * @return
+     *      True if opened, false otherwise.
+     */
+    private static boolean load(String filePath, Log log) {
+        File file = new File(filePath);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            return false;
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+            // Drops a partially written record, e.g. after a crash
+            long records = channel.size() / RECORD_SIZE;
+            channel.truncate(records * RECORD_SIZE);
+            log.records = records;
+            if (records > 0) {
+                try (FileChannel reader = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                    log.lastTimestamp = readRecord(reader, records - 1).getLong();
+                    log.recent = mapRecent(filePath + RECENT_SUFFIX, reader, records);
+                }
+            } else {
+                log.recent = mapRecent(filePath + RECENT_SUFFIX, null, 0);
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+
+        log.channel = channel;
+        return true;
+    }
+
+    /**
+     * Removes the least recently used logs above the limit.
+     * Must hold the lock of the logs map.
+     * @return
+     *      Logs removed, to be closed once the lock is released.
+     */
+    private List<Log> evict() {
+        List<Log> evicted = new ArrayList<>();
+        Iterator<Log> it = this.logs.values().iterator();
+        while (this.logs.size() > MAX_OPEN_LOGS && it.hasNext()) {
+            evicted.add(it.next());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Forces the pending appends of every log to disk.
+     */
+    private void sync() {
+        List<Log> open;
+        synchronized (this.logs) {
+            open = new ArrayList<>(this.logs.values());
+        }
+        for (Log log : open) {
+            log.lock.lock();
+            try {
+                if (!log.dirty || !log.isOpen())
+                    continue;
+                log.channel.force(false);
+                log.dirty = false;
+            } catch (IOException e) {
+            } finally {
+                log.lock.unlock();
+            }
+        }
+    }
+
+    private static void closeLog(Log log) {
+        log.lock.lock();
+        try {
+            if (!log.isOpen())
+                return;
+            if (log.dirty)
+                log.channel.force(false);
+            log.channel.close();
+        } catch (IOException e) {
+        } finally {
+            log.lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the ring of a log, rebuilding it from the tail
+     * of the log if it doesn't hold the last readings.
+     * @param reader
+     *      Log opened for reading, null if it's empty.
+     * @param records
+     *      Number of readings in the log.
+     * @return
+     *      Mapped ring or null if it couldn't be mapped, the
+     *      log is still used without it.
+     */
+    private static MappedByteBuffer mapRecent(String ringPath, FileChannel reader, long records) {
+        int size = RECENT_HEADER_SIZE + RECENT_CAPACITY * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(Paths.get(ringPath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean valid = channel.size() == size;
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer recent = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (valid && recent.getInt(0) == RECENT_MAGIC && recent.getInt(Integer.BYTES) == RECENT_CAPACITY
+                    && recent.getLong(2 * Integer.BYTES) == records)
+                return recent;
+
+            recent.putInt(0, RECENT_MAGIC);
+            recent.putInt(Integer.BYTES, RECENT_CAPACITY);
+            long first = Math.max(0, records - RECENT_CAPACITY);
+            if (reader != null) {
+                ByteBuffer tail = ByteBuffer.allocate((int) (records - first) * RECORD_SIZE);
+                while (tail.hasRemaining()) {
+                    if (reader.read(tail, first * RECORD_SIZE + tail.position()) < 0)
+                        return null;
+                }
+                for (long i = first; i < records; i++)
+                    recent.put(slot(i), tail, (int) (i - first) * RECORD_SIZE, RECORD_SIZE);
+            }
+            recent.putLong(2 * Integer.BYTES, records);
+            return recent;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the first record of a log not older than a time.
+     * @return
+     *      It's index, or the number of records if they are
+     *      all older.
+     */
+    private static long firstNotBefore(FileChannel channel, long records, long timestamp) throws IOException {
+        long low = 0, high = records;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (readRecord(channel, middle).getLong() < timestamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    // Position of a reading in the ring
+    private static int slot(long index) {
+        return RECENT_HEADER_SIZE + (int) (index % RECENT_CAPACITY) * RECORD_SIZE;
+    }
+
+    /**
+     * Reads the records of a log in [first, end).
+     */
+    private static IoTReadings readRecords(FileChannel channel, long first, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+        IoTReadings readings = new IoTReadings((int) Math.min(end - first, 512));
+        long position = first * RECORD_SIZE;
+        while (position < end * RECORD_SIZE) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end * RECORD_SIZE - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    return readings;
+            }
+            position += buffer.position();
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE)
+                readings.add(buffer.getLong(), buffer.getFloat());
+        }
+        return readings;
+    }
+
+    private static ByteBuffer readRecord(FileChannel channel, long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        long position = index * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of log");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Log open for appending.
+     */
+    private static class Log {
+        // Held around the file I/O, a monitor would keep the carrier
+        // of every virtual thread waiting for it
+        private final ReentrantLock lock = new ReentrantLock();
+        // Null until opened, read without the lock by open
+        private volatile FileChannel channel = null;
+        private long lastTimestamp = Long.MIN_VALUE;
+        private boolean dirty = false;
+        // Number of readings in the log
+        private long records = 0;
+        // Ring of the most recent readings, null if not mapped
+        private MappedByteBuffer recent = null;
+
+        private boolean isOpen() {
+            return this.channel != null && this.channel.isOpen();
+        }
+
+        /**
+         * Copies appended records into the ring, they are
+         * already counted in records.
+         */
+        private void remember(ByteBuffer appended) {
+            long index = this.records - appended.remaining() / RECORD_SIZE;
+            for (; appended.remaining() >= RECORD_SIZE; index++) {
+                this.recent.put(slot(index), appended, appended.position(), RECORD_SIZE);
+                appended.position(appended.position() + RECORD_SIZE);
+            }
+            this.recent.putLong(2 * Integer.BYTES, this.records);
+        }
+
+        /**
+         * Tells if the ring has every reading from a time on,
+         * i.e. it has all the readings or the oldest it still
+         * has is older than that time.
+         */
+        private boolean covers(long from) {
+            if (this.records <= RECENT_CAPACITY)
+                return true;
+            return this.recent.getLong(slot(this.records - RECENT_CAPACITY)) < from;
+        }
+
+        /**
+         * Reads the last readings from the ring.
+         */
+        private IoTReadings latest(int size) {
+            IoTReadings readings = new IoTReadings(size);
+            for (long i = this.records - size; i < this.records; i++) {
+                int position = slot(i);
+                readings.add(this.recent.getLong(position), this.recent.getFloat(position + Long.BYTES));
+            }
+            return readings;
+        }
+
+        /**
+         * Visits the readings of the ring within a time range.
+         */
+        private void within(long from, long to, Visitor visitor) {
+            for (long i = Math.max(0, this.records - RECENT_CAPACITY); i < this.records; i++) {
+                int position = slot(i);
+                long timestamp = this.recent.getLong(position);
+                if (timestamp > to)
+                    break;
+                if (timestamp >= from)
+                    visitor.accept(timestamp, this.recent.getFloat(position + Long.BYTES));
+            }
+        }
+    }
+
+    /**
+     * Receives the readings of a log as they're read.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void accept(long timestamp, float value);
+    }
+}